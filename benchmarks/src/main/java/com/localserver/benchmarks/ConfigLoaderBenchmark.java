@@ -0,0 +1,64 @@
+package com.localserver.benchmarks;
+
+import com.localserver.ConfigLoader;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// ConfigLoader.parse on generated configs shaped like config.json, with
+// many servers and routes each.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConfigLoaderBenchmark {
+    @Param({"10", "100", "1000"})
+    public int servers;
+
+    private String json;
+
+    @Setup
+    public void setup() {
+        StringBuilder out = new StringBuilder();
+        out.append("{\n  \"keep_alive_timeout_ms\": 5000,\n  \"reactor_threads\": 0,\n  \"servers\": [\n");
+        for (int i = 0; i < servers; i++) {
+            if (i > 0) out.append(",\n");
+            out.append("    {\n")
+                    .append("      \"host\": \"localhost\",\n")
+                    .append("      \"port\": ").append(8080 + i).append(",\n")
+                    .append("      \"server_name\": [\"site").append(i).append(".example.com\", \"www.site").append(i).append(".example.com\"],\n")
+                    .append("      \"root\": \"./www/site").append(i).append("\",\n")
+                    .append("      \"client_max_body_size\": 1048576,\n")
+                    .append("      \"error_pages\": {\"404\": \"./error_pages/404.html\", \"500\": \"./error_pages/500.html\"},\n")
+                    .append("      \"routes\": {\n");
+            for (int r = 0; r < 10; r++) {
+                if (r > 0) out.append(",\n");
+                out.append("        \"/section").append(r).append("\": {")
+                        .append("\"methods\": [\"GET\", \"POST\", \"DELETE\"], ")
+                        .append("\"default_file\": \"index.html\", ")
+                        .append("\"directory_listing\": false, ")
+                        .append("\"cgi_timeout_ms\": 30000}");
+            }
+            out.append("\n      }\n    }");
+        }
+        out.append("\n  ]\n}\n");
+        json = out.toString();
+    }
+
+    @Benchmark
+    public Map<String, Object> parse() {
+        return ConfigLoader.fromString(json).parse();
+    }
+}
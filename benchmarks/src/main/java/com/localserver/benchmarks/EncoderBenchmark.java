@@ -0,0 +1,71 @@
+package com.localserver.benchmarks;
+
+import com.localserver.BufferPool;
+import com.localserver.HttpResponse;
+import com.localserver.ResponseEncoder;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Building and encoding a typical small response: the reactor path through
+// ResponseEncoder into a pooled buffer, and the heap path the static cache
+// uses for the heads it stores.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EncoderBenchmark {
+    private static final byte[] BODY = "<html><h1>Hello</h1></html>".getBytes();
+
+    private final ResponseEncoder encoder = new ResponseEncoder();
+    private BufferPool pool;
+    private HttpResponse prepared;
+
+    @Setup
+    public void setup() {
+        pool = new BufferPool(Collections.emptyMap());
+        prepared = response();
+    }
+
+    private static HttpResponse response() {
+        HttpResponse response = new HttpResponse();
+        response.setStatus(200, "OK");
+        response.setBody(BODY, "text/html");
+        response.setHeader("ETag", "\"1b-18c2a1b9f40\"");
+        response.setHeader("Last-Modified", "Tue, 05 Mar 2024 10:15:30 GMT");
+        response.setKeepAlive(true);
+        return response;
+    }
+
+    @Benchmark
+    public int encodePooled() {
+        BufferPool.Chunk head = encoder.encode(prepared, pool);
+        int size = head.buffer().remaining();
+        pool.release(head);
+        return size;
+    }
+
+    @Benchmark
+    public int buildAndEncodePooled() {
+        BufferPool.Chunk head = encoder.encode(response(), pool);
+        int size = head.buffer().remaining();
+        pool.release(head);
+        return size;
+    }
+
+    @Benchmark
+    public byte[] encodeHeap() {
+        return prepared.encodeHead();
+    }
+}
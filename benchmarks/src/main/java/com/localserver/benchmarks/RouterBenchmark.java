@@ -0,0 +1,79 @@
+package com.localserver.benchmarks;
+
+import com.localserver.HttpParser;
+import com.localserver.HttpRequest;
+import com.localserver.HttpResponse;
+import com.localserver.Metrics;
+import com.localserver.Router;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Router.handle on the paths most requests take: a static file served from
+// the cache, the session page with an existing session, and a 404.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RouterBenchmark {
+    private Router router;
+    private HttpRequest staticFile;
+    private HttpRequest session;
+    private HttpRequest missing;
+
+    @Setup
+    public void setup() throws IOException, HttpParser.ParseException {
+        Path root = Files.createTempDirectory("router-bench");
+        root.toFile().deleteOnExit();
+        Path index = root.resolve("index.html");
+        Files.write(index, "<html><body><h1>Benchmark</h1></body></html>".repeat(20).getBytes(StandardCharsets.UTF_8));
+        index.toFile().deleteOnExit();
+
+        Map<String, Object> config = new HashMap<>();
+        config.put("root", root.toString());
+        router = new Router(config, new Metrics());
+
+        staticFile = parse("GET /index.html HTTP/1.1\r\nHost: localhost\r\n\r\n");
+        missing = parse("GET /no/such/file.html HTTP/1.1\r\nHost: localhost\r\n\r\n");
+        HttpResponse created = router.handle(parse("GET /session HTTP/1.1\r\nHost: localhost\r\n\r\n"));
+        String cookie = created.getHeader("Set-Cookie");
+        String id = cookie.substring(0, cookie.indexOf(';'));
+        session = parse("GET /session HTTP/1.1\r\nHost: localhost\r\nCookie: " + id + "\r\n\r\n");
+    }
+
+    private static HttpRequest parse(String raw) throws HttpParser.ParseException {
+        return new HttpParser().parse(ByteBuffer.wrap(raw.getBytes(StandardCharsets.US_ASCII)));
+    }
+
+    @Benchmark
+    public HttpResponse staticCached() {
+        return router.handle(staticFile);
+    }
+
+    @Benchmark
+    public HttpResponse session() {
+        return router.handle(session);
+    }
+
+    @Benchmark
+    public HttpResponse notFound() {
+        return router.handle(missing);
+    }
+}
@@ -0,0 +1,107 @@
+#!/usr/bin/env python3
+# Persistent CGI runner used when a route sets "cgi_workers". The server
+# keeps a pool of these processes and sends one request at a time over
+# stdin/stdout, so scripts run without paying interpreter startup.
+#
+# Every message is a frame: one type byte, a 4-byte big-endian length and
+# the payload.
+#   server -> worker  E  environment, NUL-separated KEY=VALUE pairs
+#                     I  request body data; an empty I frame ends the body
+#                     P  health check
+#   worker -> server  O  script output (CGI headers, blank line, body)
+#                     D  request finished
+#                     P  health check answer
+import io
+import os
+import runpy
+import struct
+import sys
+import traceback
+
+channel_in = sys.stdin.buffer
+channel_out = sys.stdout.buffer
+base_env = dict(os.environ)
+
+
+def read_frame():
+    head = channel_in.read(5)
+    if len(head) < 5:
+        return None, None
+    kind, length = struct.unpack(">cI", head)
+    payload = channel_in.read(length) if length else b""
+    if len(payload) < length:
+        return None, None
+    return kind, payload
+
+
+def write_frame(kind, payload=b""):
+    channel_out.write(struct.pack(">cI", kind, len(payload)))
+    channel_out.write(payload)
+    channel_out.flush()
+
+
+class FrameWriter(io.RawIOBase):
+    def __init__(self):
+        self.written = 0
+
+    def writable(self):
+        return True
+
+    def write(self, data):
+        data = bytes(data)
+        if data:
+            write_frame(b"O", data)
+            self.written += len(data)
+        return len(data)
+
+
+def run(env, body):
+    os.environ.clear()
+    os.environ.update(base_env)
+    os.environ.update(env)
+    raw = FrameWriter()
+    out = io.BufferedWriter(raw, 8192)
+    text = io.TextIOWrapper(out, encoding="utf-8", write_through=False)
+    sys.stdin = io.TextIOWrapper(io.BytesIO(body), encoding="utf-8")
+    sys.stdout = text
+    try:
+        runpy.run_path(env["SCRIPT_FILENAME"], run_name="__main__")
+    except SystemExit:
+        pass
+    except Exception:
+        traceback.print_exc(file=sys.stderr)
+        text.flush()
+        if raw.written == 0:
+            text.write("Status: 500 Internal Server Error\r\nContent-Type: text/plain\r\n\r\nScript failed\n")
+    finally:
+        try:
+            text.flush()
+        except ValueError:
+            pass  # the script closed stdout itself
+        sys.stdout = sys.__stdout__
+        sys.stdin = sys.__stdin__
+    write_frame(b"D")
+
+
+def main():
+    env = None
+    body = bytearray()
+    while True:
+        kind, payload = read_frame()
+        if kind is None:
+            return
+        if kind == b"P":
+            write_frame(b"P")
+        elif kind == b"E":
+            env = dict(pair.split("=", 1) for pair in payload.decode("utf-8").split("\0") if "=" in pair)
+            body = bytearray()
+        elif kind == b"I":
+            if payload:
+                body += payload
+            else:
+                run(env, bytes(body))
+                env = None
+
+
+if __name__ == "__main__":
+    main()
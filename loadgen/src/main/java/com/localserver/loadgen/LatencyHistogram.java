@@ -0,0 +1,62 @@
+package com.localserver.loadgen;
+
+// Latency histogram in the style of HdrHistogram: values (microseconds)
+// below 2048 are counted exactly; above that each power of two is split
+// into 1024 buckets, so any reported value is within 0.1% of the true one.
+// Single-threaded, like the load generator.
+public class LatencyHistogram {
+    private static final int SUB_BITS = 11;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    private static final int HALF = SUB_COUNT / 2;
+    private static final int MAX_SHIFT = 32;
+
+    private final long[] counts = new long[SUB_COUNT + MAX_SHIFT * HALF];
+    private long total;
+    private long max;
+    private long min = Long.MAX_VALUE;
+    private double sum;
+
+    public void record(long micros) {
+        if (micros < 0) micros = 0;
+        counts[index(micros)]++;
+        total++;
+        sum += micros;
+        if (micros > max) max = micros;
+        if (micros < min) min = micros;
+    }
+
+    public long getCount() { return total; }
+    public long getMax() { return max; }
+    public long getMin() { return total == 0 ? 0 : min; }
+    public double getMean() { return total == 0 ? 0 : sum / total; }
+
+    // The smallest recorded value v such that percentile percent of all
+    // values are at or below v, rounded up to the end of its bucket.
+    public long valueAtPercentile(double percentile) {
+        if (total == 0) return 0;
+        long target = Math.max(1, (long) Math.ceil(percentile / 100.0 * total));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= target) {
+                return Math.min(highestEquivalent(i), max);
+            }
+        }
+        return max;
+    }
+
+    private static int index(long value) {
+        if (value < SUB_COUNT) return (int) value;
+        int shift = 63 - Long.numberOfLeadingZeros(value) - (SUB_BITS - 1);
+        if (shift > MAX_SHIFT) return SUB_COUNT + MAX_SHIFT * HALF - 1;
+        int sub = (int) (value >> shift);
+        return SUB_COUNT + (shift - 1) * HALF + (sub - HALF);
+    }
+
+    private static long highestEquivalent(int index) {
+        if (index < SUB_COUNT) return index;
+        int shift = (index - SUB_COUNT) / HALF + 1;
+        long sub = (index - SUB_COUNT) % HALF + HALF;
+        return ((sub + 1) << shift) - 1;
+    }
+}
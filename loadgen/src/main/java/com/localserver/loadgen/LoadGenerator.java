@@ -0,0 +1,532 @@
+package com.localserver.loadgen;
+
+import com.localserver.ConfigLoader;
+import com.localserver.Server;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.StandardSocketOptions;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+// Open-loop HTTP load generator. Requests are scheduled at a constant
+// arrival rate whether or not earlier ones have been answered, and latency
+// is measured from each request's scheduled start, so time spent waiting
+// for a free connection counts (no coordinated omission). Everything runs
+// on one thread with a Selector.
+//
+//   java -jar loadgen.jar --url http://localhost:8080 --rate 2000 --duration 30 \
+//       --connections 32 --pipeline 4 \
+//       --request "GET / weight=8" --request "GET /cgi-bin/hello.py weight=1" \
+//       --request "POST /upload/bench.bin body=4096 weight=1"
+//
+// With --config the server is started in this process from that file first.
+public class LoadGenerator {
+    private static final double[] PERCENTILES = {50, 90, 99, 99.9, 99.99};
+
+    private static final class Template {
+        private final String label;
+        private final boolean head;
+        private final int weight;
+        private final byte[] bytes;
+        private final LatencyHistogram latency = new LatencyHistogram();
+        private long errors;
+
+        Template(String label, boolean head, int weight, byte[] bytes) {
+            this.label = label;
+            this.head = head;
+            this.weight = weight;
+            this.bytes = bytes;
+        }
+    }
+
+    private static final class Pending {
+        private final Template template;
+        private final long intended;
+        private long sent;
+        private int retries;
+
+        Pending(Template template, long intended) {
+            this.template = template;
+            this.intended = intended;
+        }
+    }
+
+    private final class Conn {
+        private final SocketChannel channel;
+        private final SelectionKey key;
+        private final ArrayDeque<Pending> inflight = new ArrayDeque<>();
+        private final ArrayDeque<ByteBuffer> out = new ArrayDeque<>();
+        private final ResponseParser parser = new ResponseParser();
+        private boolean connected;
+        private int served;
+
+        Conn() throws IOException {
+            channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            connected = channel.connect(address);
+            key = channel.register(selector, connected ? SelectionKey.OP_READ : SelectionKey.OP_CONNECT, this);
+        }
+
+        boolean accepts() {
+            if (!keepAlive) return served == 0 && inflight.isEmpty();
+            return inflight.size() < pipeline;
+        }
+    }
+
+    // Options
+    private String host = "localhost";
+    private int port = 8080;
+    private double rate = 1000;
+    private double durationSeconds = 10;
+    private double warmupSeconds = 2;
+    private int connections = 16;
+    private int pipeline = 1;
+    private boolean keepAlive = true;
+    private long timeoutMs = 10000;
+    private String configPath;
+    private final List<String> requestSpecs = new ArrayList<>();
+
+    private InetSocketAddress address;
+    private Selector selector;
+    private final List<Template> templates = new ArrayList<>();
+    private int totalWeight;
+    private final List<Conn> conns = new ArrayList<>();
+    private final ArrayDeque<Pending> backlog = new ArrayDeque<>();
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(65536);
+    private final ByteBuffer[] gather = new ByteBuffer[64];
+    private final LatencyHistogram corrected = new LatencyHistogram();
+    private final LatencyHistogram service = new LatencyHistogram();
+    private final long[] statusClasses = new long[6];
+    private long measureFrom;
+    private long scheduled;
+    private long errors;
+    private long connectionsOpened;
+    private int nextConn;
+
+    public static void main(String[] args) throws Exception {
+        LoadGenerator generator = new LoadGenerator();
+        try {
+            generator.parseArgs(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            usage();
+            System.exit(2);
+        }
+        PrintStream report = System.out;
+        if (generator.configPath != null) {
+            // The server logs every connection; keep that out of the report.
+            System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+            generator.startServer();
+        }
+        generator.run();
+        generator.report(report);
+    }
+
+    private static void usage() {
+        System.err.println("Usage: loadgen [options]\n"
+                + "  --url URL            target, default http://localhost:8080\n"
+                + "  --rate N             requests per second, default 1000\n"
+                + "  --duration S         measured seconds, default 10\n"
+                + "  --warmup S           seconds run before measuring, default 2\n"
+                + "  --connections N      connections to spread requests over, default 16\n"
+                + "  --pipeline N         requests in flight per connection, default 1\n"
+                + "  --no-keep-alive      one request per connection\n"
+                + "  --timeout S          per request, default 10\n"
+                + "  --request SPEC       \"METHOD PATH [body=BYTES] [weight=N]\", repeatable;\n"
+                + "                       default \"GET /\"\n"
+                + "  --config FILE        start the server from FILE in this process first");
+    }
+
+    private void parseArgs(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.equals("--no-keep-alive")) {
+                keepAlive = false;
+                continue;
+            }
+            if (arg.equals("--help") || arg.equals("-h")) {
+                usage();
+                System.exit(0);
+            }
+            if (i + 1 >= args.length) throw new IllegalArgumentException("Missing value for " + arg);
+            String value = args[++i];
+            switch (arg) {
+                case "--url": {
+                    URI uri = URI.create(value);
+                    host = uri.getHost();
+                    port = uri.getPort() != -1 ? uri.getPort() : 80;
+                    break;
+                }
+                case "--rate": rate = Double.parseDouble(value); break;
+                case "--duration": durationSeconds = Double.parseDouble(value); break;
+                case "--warmup": warmupSeconds = Double.parseDouble(value); break;
+                case "--connections": connections = Integer.parseInt(value); break;
+                case "--pipeline": pipeline = Integer.parseInt(value); break;
+                case "--timeout": timeoutMs = (long) (Double.parseDouble(value) * 1000); break;
+                case "--request": requestSpecs.add(value); break;
+                case "--config": configPath = value; break;
+                default: throw new IllegalArgumentException("Unknown option " + arg);
+            }
+        }
+        if (rate <= 0 || connections <= 0 || pipeline <= 0) {
+            throw new IllegalArgumentException("--rate, --connections and --pipeline must be positive");
+        }
+        if (requestSpecs.isEmpty()) requestSpecs.add("GET /");
+        for (String spec : requestSpecs) {
+            templates.add(template(spec));
+        }
+    }
+
+    private Template template(String spec) {
+        String[] parts = spec.trim().split("\\s+");
+        if (parts.length < 2) throw new IllegalArgumentException("Bad --request: " + spec);
+        String method = parts[0].toUpperCase();
+        String path = parts[1];
+        int body = 0;
+        int weight = 1;
+        for (int i = 2; i < parts.length; i++) {
+            if (parts[i].startsWith("body=")) {
+                body = Integer.parseInt(parts[i].substring(5));
+            } else if (parts[i].startsWith("weight=")) {
+                weight = Integer.parseInt(parts[i].substring(7));
+            } else {
+                throw new IllegalArgumentException("Bad --request: " + spec);
+            }
+        }
+        StringBuilder head = new StringBuilder();
+        head.append(method).append(' ').append(path).append(" HTTP/1.1\r\n");
+        head.append("Host: ").append(host).append(':').append(port).append("\r\n");
+        head.append("User-Agent: localserver-loadgen\r\n");
+        if (!keepAlive) head.append("Connection: close\r\n");
+        if (body > 0 || method.equals("POST") || method.equals("PUT")) {
+            head.append("Content-Type: application/octet-stream\r\n");
+            head.append("Content-Length: ").append(body).append("\r\n");
+        }
+        head.append("\r\n");
+        byte[] headBytes = head.toString().getBytes(StandardCharsets.US_ASCII);
+        byte[] bytes = new byte[headBytes.length + body];
+        System.arraycopy(headBytes, 0, bytes, 0, headBytes.length);
+        Random random = new Random(bytes.length);
+        for (int i = headBytes.length; i < bytes.length; i++) {
+            bytes[i] = (byte) random.nextInt(256);
+        }
+        totalWeight += weight;
+        String label = method + " " + path + (body > 0 ? " (" + body + " B)" : "");
+        return new Template(label, method.equals("HEAD"), weight, bytes);
+    }
+
+    private void startServer() throws IOException, InterruptedException {
+        Map<String, Object> config = new ConfigLoader(configPath).parse();
+        Thread thread = new Thread(() -> {
+            try {
+                new Server(config).start();
+            } catch (IOException e) {
+                System.err.println("Server failed: " + e.getMessage());
+            }
+        }, "server");
+        thread.setDaemon(true);
+        thread.start();
+        long deadline = System.currentTimeMillis() + 10000;
+        while (true) {
+            try (Socket probe = new Socket(host, port)) {
+                return;
+            } catch (IOException e) {
+                if (System.currentTimeMillis() > deadline) throw e;
+                Thread.sleep(50);
+            }
+        }
+    }
+
+    private void run() throws IOException {
+        address = new InetSocketAddress(host, port);
+        selector = Selector.open();
+        Random random = new Random(42);
+        long start = System.nanoTime();
+        measureFrom = start + (long) (warmupSeconds * 1e9);
+        long end = measureFrom + (long) (durationSeconds * 1e9);
+        double interval = 1e9 / rate;
+        long index = 0;
+        long next = start;
+        long lastTimeoutCheck = start;
+
+        while (true) {
+            long now = System.nanoTime();
+            while (next <= now && next < end) {
+                Pending pending = new Pending(pick(random), next);
+                if (next >= measureFrom) scheduled++;
+                backlog.add(pending);
+                index++;
+                next = start + (long) (index * interval);
+            }
+            assign(now);
+            if (now - lastTimeoutCheck > 50_000_000L) {
+                expire(now);
+                lastTimeoutCheck = now;
+            }
+            boolean busy = !backlog.isEmpty();
+            for (int i = 0; i < conns.size() && !busy; i++) {
+                busy = !conns.get(i).inflight.isEmpty();
+            }
+            if (next >= end && !busy) break;
+            if (now > end + timeoutMs * 1_000_000L) break;
+
+            long waitNanos = next < end ? next - System.nanoTime() : 10_000_000L;
+            if (waitNanos >= 1_000_000L) {
+                selector.select(Math.min(waitNanos / 1_000_000L, 50));
+            } else {
+                selector.selectNow();
+            }
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                Conn conn = (Conn) key.attachment();
+                if (!key.isValid()) continue;
+                try {
+                    if (key.isConnectable()) {
+                        conn.channel.finishConnect();
+                        conn.connected = true;
+                        flush(conn);
+                    }
+                    if (key.isValid() && key.isWritable()) flush(conn);
+                    if (key.isValid() && key.isReadable()) read(conn);
+                } catch (IOException e) {
+                    // Typically the server closing a kept-alive connection
+                    // under us; what it never answered is sent again.
+                    retry(conn);
+                    close(conn);
+                }
+            }
+        }
+        for (Conn conn : new ArrayList<>(conns)) {
+            errors += countMeasured(conn.inflight);
+            conn.inflight.clear();
+            close(conn);
+        }
+        errors += countMeasured(backlog);
+        selector.close();
+    }
+
+    private Template pick(Random random) {
+        if (templates.size() == 1) return templates.get(0);
+        int roll = random.nextInt(totalWeight);
+        for (Template template : templates) {
+            roll -= template.weight;
+            if (roll < 0) return template;
+        }
+        return templates.get(templates.size() - 1);
+    }
+
+    // Hands due requests to connections with room, opening connections up
+    // to the limit. Whatever does not fit waits in the backlog, and that
+    // wait is part of its measured latency.
+    private void assign(long now) throws IOException {
+        while (!backlog.isEmpty()) {
+            Conn conn = freeConnection();
+            if (conn == null) return;
+            Pending pending = backlog.poll();
+            pending.sent = now;
+            conn.inflight.add(pending);
+            conn.out.add(ByteBuffer.wrap(pending.template.bytes));
+            if (conn.connected) {
+                try {
+                    flush(conn);
+                } catch (IOException e) {
+                    retry(conn);
+                    close(conn);
+                }
+            }
+        }
+    }
+
+    private Conn freeConnection() throws IOException {
+        for (int i = 0; i < conns.size(); i++) {
+            Conn conn = conns.get((nextConn + i) % conns.size());
+            if (conn.accepts()) {
+                nextConn = (nextConn + i + 1) % conns.size();
+                return conn;
+            }
+        }
+        if (conns.size() < connections) {
+            Conn conn = new Conn();
+            conns.add(conn);
+            connectionsOpened++;
+            return conn;
+        }
+        return null;
+    }
+
+    private void flush(Conn conn) throws IOException {
+        while (!conn.out.isEmpty()) {
+            int count = 0;
+            for (ByteBuffer buffer : conn.out) {
+                if (count == gather.length) break;
+                gather[count++] = buffer;
+            }
+            conn.channel.write(gather, 0, count);
+            Arrays.fill(gather, 0, count, null);
+            while (!conn.out.isEmpty() && !conn.out.peek().hasRemaining()) {
+                conn.out.poll();
+            }
+            if (!conn.out.isEmpty()) {
+                conn.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                return;
+            }
+        }
+        conn.key.interestOps(SelectionKey.OP_READ);
+    }
+
+    private void read(Conn conn) throws IOException {
+        readBuffer.clear();
+        int n = conn.channel.read(readBuffer);
+        if (n == -1) {
+            if (conn.parser.endOfStream()) complete(conn);
+            // Requests the server never answered (it closed after its
+            // keep-alive limit, say) are sent again on another connection.
+            retry(conn);
+            close(conn);
+            return;
+        }
+        readBuffer.flip();
+        while (readBuffer.hasRemaining()) {
+            Pending head = conn.inflight.peek();
+            if (head == null) throw new IOException("Unexpected data from server");
+            conn.parser.expectNoBody(head.template.head);
+            if (!conn.parser.parse(readBuffer)) break;
+            if (complete(conn)) return;
+        }
+    }
+
+    // Records the response to the oldest request on conn. Returns true if
+    // the connection was closed as a result.
+    private boolean complete(Conn conn) {
+        long now = System.nanoTime();
+        Pending pending = conn.inflight.poll();
+        int status = conn.parser.getStatus();
+        boolean close = conn.parser.isClose();
+        conn.parser.reset();
+        conn.served++;
+        if (pending != null && pending.intended >= measureFrom) {
+            long latency = (now - pending.intended) / 1000;
+            corrected.record(latency);
+            service.record((now - pending.sent) / 1000);
+            pending.template.latency.record(latency);
+            statusClasses[Math.max(0, Math.min(status / 100, 5))]++;
+        }
+        if (close || !keepAlive) {
+            retry(conn);
+            close(conn);
+            return true;
+        }
+        return false;
+    }
+
+    private void retry(Conn conn) {
+        Pending pending;
+        while ((pending = conn.inflight.pollLast()) != null) {
+            if (pending.retries++ < 2) {
+                backlog.addFirst(pending);
+            } else {
+                error(pending);
+            }
+        }
+    }
+
+    private void fail(Conn conn) {
+        Pending pending;
+        while ((pending = conn.inflight.poll()) != null) {
+            error(pending);
+        }
+        close(conn);
+    }
+
+    // Requests in flight for longer than the timeout count as errors and
+    // take their connection with them.
+    private void expire(long now) {
+        for (Conn conn : new ArrayList<>(conns)) {
+            Pending head = conn.inflight.peek();
+            if (head != null && now - head.sent > timeoutMs * 1_000_000L) {
+                fail(conn);
+            }
+        }
+    }
+
+    private void error(Pending pending) {
+        if (pending.intended >= measureFrom) {
+            errors++;
+            pending.template.errors++;
+        }
+    }
+
+    private long countMeasured(Iterable<Pending> pendings) {
+        long count = 0;
+        for (Pending pending : pendings) {
+            if (pending.intended >= measureFrom) count++;
+        }
+        return count;
+    }
+
+    private void close(Conn conn) {
+        conn.key.cancel();
+        try {
+            conn.channel.close();
+        } catch (IOException e) {
+            // ignore
+        }
+        conns.remove(conn);
+    }
+
+    private void report(PrintStream out) {
+        long completed = corrected.getCount();
+        out.printf("Target      %s:%d, %.0f req/s for %.1f s (after %.1f s warm-up)%n",
+                host, port, rate, durationSeconds, warmupSeconds);
+        out.printf("Mode        %d connections, %s, pipeline depth %d, %d connections opened%n",
+                connections, keepAlive ? "keep-alive" : "one request per connection", pipeline, connectionsOpened);
+        out.printf("Requests    %d scheduled, %d completed, %d errors%n", scheduled, completed, errors);
+        out.printf("Status      1xx %d  2xx %d  3xx %d  4xx %d  5xx %d%n",
+                statusClasses[1], statusClasses[2], statusClasses[3], statusClasses[4], statusClasses[5]);
+        out.printf("Throughput  %.1f req/s%n", completed / durationSeconds);
+        out.println();
+        out.println("Latency from scheduled start, corrected for coordinated omission (ms):");
+        printPercentiles(out, corrected);
+        out.println("Service time from actual send, uncorrected (ms):");
+        printPercentiles(out, service);
+        if (templates.size() > 1) {
+            out.println();
+            out.println("Per request (corrected, ms):");
+            for (Template template : templates) {
+                out.printf("  %-40s %8d done %6d errors   p50 %9.3f  p99 %9.3f  max %9.3f%n",
+                        template.label, template.latency.getCount(), template.errors,
+                        template.latency.valueAtPercentile(50) / 1000.0,
+                        template.latency.valueAtPercentile(99) / 1000.0,
+                        template.latency.getMax() / 1000.0);
+            }
+        }
+    }
+
+    private static void printPercentiles(PrintStream out, LatencyHistogram histogram) {
+        StringBuilder line = new StringBuilder(" ");
+        for (double percentile : PERCENTILES) {
+            line.append(String.format("  p%s %.3f", percentile == Math.floor(percentile)
+                    ? String.valueOf((int) percentile) : String.valueOf(percentile),
+                    histogram.valueAtPercentile(percentile) / 1000.0));
+        }
+        line.append(String.format("  max %.3f  mean %.3f", histogram.getMax() / 1000.0, histogram.getMean() / 1000.0));
+        out.println(line);
+    }
+}
@@ -0,0 +1,188 @@
+package com.localserver.loadgen;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+// Finds response boundaries in the bytes read from one connection. Only
+// what is needed to frame responses is decoded: the status code,
+// Content-Length, chunked transfer coding and Connection: close. Bodies are
+// skipped, not stored.
+public class ResponseParser {
+    private static final int MAX_LINE = 65536;
+
+    private enum State { HEAD, BODY, CHUNK_SIZE, CHUNK_DATA, CHUNK_END, TRAILER, UNTIL_CLOSE }
+
+    private State state = State.HEAD;
+    private final StringBuilder line = new StringBuilder();
+    private int status;
+    private long contentLength = -1;
+    private boolean chunked;
+    private boolean close;
+    private long remaining;
+    private boolean noBody;
+
+    // Set before the bytes of each response arrive: HEAD responses carry
+    // no body whatever their headers say.
+    public void expectNoBody(boolean noBody) {
+        this.noBody = noBody;
+    }
+
+    public int getStatus() { return status; }
+
+    // True if the server will close the connection after this response.
+    public boolean isClose() { return close; }
+
+    // Called at EOF. Returns true if that completes a response whose body
+    // runs to the end of the connection.
+    public boolean endOfStream() {
+        return state == State.UNTIL_CLOSE && finish();
+    }
+
+    // Consumes bytes from in and returns true when a response has been
+    // completed; the rest of the buffer is left for the next call.
+    public boolean parse(ByteBuffer in) throws IOException {
+        while (in.hasRemaining()) {
+            switch (state) {
+                case HEAD:
+                case CHUNK_SIZE:
+                case CHUNK_END:
+                case TRAILER: {
+                    String text = readLine(in);
+                    if (text == null) return false;
+                    if (onLine(text)) return true;
+                    break;
+                }
+                case BODY:
+                case CHUNK_DATA: {
+                    int n = (int) Math.min(remaining, in.remaining());
+                    in.position(in.position() + n);
+                    remaining -= n;
+                    if (remaining > 0) return false;
+                    if (state == State.BODY) return finish();
+                    state = State.CHUNK_END;
+                    break;
+                }
+                case UNTIL_CLOSE:
+                    in.position(in.limit());
+                    return false;
+            }
+        }
+        return false;
+    }
+
+    private boolean onLine(String text) throws IOException {
+        switch (state) {
+            case HEAD:
+                if (status == 0) {
+                    status = parseStatus(text);
+                    return false;
+                }
+                if (!text.isEmpty()) {
+                    header(text);
+                    return false;
+                }
+                return endOfHead();
+            case CHUNK_SIZE: {
+                int semicolon = text.indexOf(';');
+                String size = (semicolon == -1 ? text : text.substring(0, semicolon)).trim();
+                try {
+                    remaining = Long.parseLong(size, 16);
+                } catch (NumberFormatException e) {
+                    throw new IOException("Bad chunk size: " + text);
+                }
+                state = remaining == 0 ? State.TRAILER : State.CHUNK_DATA;
+                return false;
+            }
+            case CHUNK_END:
+                state = State.CHUNK_SIZE;
+                return false;
+            case TRAILER:
+                return text.isEmpty() && finish();
+            default:
+                return false;
+        }
+    }
+
+    private boolean endOfHead() {
+        // Interim responses (100 Continue) are followed by the real one.
+        if (status >= 100 && status < 200) {
+            status = 0;
+            close = false;
+            return false;
+        }
+        if (noBody || status == 204 || status == 304) {
+            return finish();
+        }
+        if (chunked) {
+            state = State.CHUNK_SIZE;
+        } else if (contentLength >= 0) {
+            remaining = contentLength;
+            state = State.BODY;
+            if (remaining == 0) return finish();
+        } else {
+            state = State.UNTIL_CLOSE;
+        }
+        return false;
+    }
+
+    private void header(String text) {
+        int colon = text.indexOf(':');
+        if (colon <= 0) return;
+        String name = text.substring(0, colon).trim();
+        String value = text.substring(colon + 1).trim();
+        if (name.equalsIgnoreCase("Content-Length")) {
+            contentLength = Long.parseLong(value);
+        } else if (name.equalsIgnoreCase("Transfer-Encoding")) {
+            chunked = value.toLowerCase().contains("chunked");
+        } else if (name.equalsIgnoreCase("Connection")) {
+            close = value.equalsIgnoreCase("close");
+        }
+    }
+
+    private static int parseStatus(String text) throws IOException {
+        int space = text.indexOf(' ');
+        if (!text.startsWith("HTTP/") || space == -1 || text.length() < space + 4) {
+            throw new IOException("Bad status line: " + text);
+        }
+        try {
+            return Integer.parseInt(text.substring(space + 1, space + 4));
+        } catch (NumberFormatException e) {
+            throw new IOException("Bad status line: " + text);
+        }
+    }
+
+    // Resets for the next response on the same connection.
+    private boolean finish() {
+        state = State.HEAD;
+        contentLength = -1;
+        chunked = false;
+        remaining = 0;
+        return true;
+    }
+
+    // Called by the load generator once the response has been recorded.
+    public void reset() {
+        status = 0;
+        close = false;
+        contentLength = -1;
+    }
+
+    // A line without its CRLF, or null if the line is not complete yet.
+    private String readLine(ByteBuffer in) throws IOException {
+        while (in.hasRemaining()) {
+            byte b = in.get();
+            if (line.length() > MAX_LINE) {
+                throw new IOException("Response line too long");
+            }
+            if (b == '\n') {
+                int end = line.length();
+                if (end > 0 && line.charAt(end - 1) == '\r') end--;
+                String text = line.substring(0, end);
+                line.setLength(0);
+                return text;
+            }
+            line.append((char) (b & 0xff));
+        }
+        return null;
+    }
+}
@@ -0,0 +1,349 @@
+package com.localserver;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+// Access log ("access_log"). Reactor threads put one record per response
+// into a preallocated ring of access_log_buffer slots: a compare-and-set
+// claims a slot, the fields are filled in and the slot's sequence number
+// publishes it. Nothing on that path formats, allocates or blocks. A
+// background thread turns records into logfmt lines and appends them in
+// batches to the file, which is rotated at access_log_max_bytes keeping
+// access_log_max_files old files.
+//
+// When the ring is full the record is dropped and counted, and the writer
+// notes the gap in the log. access_log_sample keeps one request in N for
+// servers that would rather sample than log everything.
+public class AccessLog {
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+    private static final long IDLE_SLEEP_MS = 10;
+
+    private static final class Record {
+        private volatile long sequence = -1;
+        private long time;
+        private SocketAddress remote;
+        private String method;
+        private String path;
+        private int status;
+        private long bytes;
+        private long durationNanos;
+        private String error;
+    }
+
+    private final Path file;
+    private final Record[] ring;
+    private final int mask;
+    private final int sample;
+    private final long maxBytes;
+    private final int maxFiles;
+    private final boolean enabled;
+    private final AtomicLong claimed = new AtomicLong();
+    private volatile long consumed;
+    private final LongAdder dropped = new LongAdder();
+    private volatile long written;
+
+    // Writer thread only.
+    private final StringBuilder line = new StringBuilder(256);
+    private final ByteBuffer batch = ByteBuffer.allocateDirect(256 * 1024);
+    private FileChannel channel;
+    private long fileBytes;
+    private long reportedDrops;
+
+    public AccessLog(Map<String, Object> config) {
+        Object path = config.get("access_log");
+        this.file = path != null ? Paths.get(path.toString()) : null;
+        int slots = Math.max(ConfigLoader.getInt(config, "access_log_buffer", 65536), 2);
+        int capacity = Integer.highestOneBit(slots - 1) << 1;
+        this.sample = Math.max(ConfigLoader.getInt(config, "access_log_sample", 1), 1);
+        this.maxBytes = ConfigLoader.getInt(config, "access_log_max_bytes", 64 * 1024 * 1024);
+        this.maxFiles = ConfigLoader.getInt(config, "access_log_max_files", 5);
+        if (file == null) {
+            this.ring = null;
+            this.mask = 0;
+            this.enabled = false;
+            return;
+        }
+        this.ring = new Record[capacity];
+        for (int i = 0; i < capacity; i++) {
+            ring[i] = new Record();
+        }
+        this.mask = capacity - 1;
+        boolean opened = false;
+        try {
+            open();
+            opened = true;
+        } catch (IOException e) {
+            System.err.println("Access log unavailable, not logging requests: " + e.getMessage());
+        }
+        this.enabled = opened;
+        if (!opened) return;
+        Thread writer = new Thread(this::writeLoop, "access-log");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    public boolean isEnabled() { return enabled; }
+    public long getWrittenCount() { return written; }
+    public long getDroppedCount() { return dropped.sum(); }
+
+    // The zero-length pieces queued after each response of one connection.
+    // Every time one is closed, once everything before it has been written
+    // or when the connection goes away first, the oldest exchange is logged
+    // with the bytes sent for it. One instance stands in for all of a
+    // connection's queued responses, so nothing is allocated per response.
+    public final class Completions implements Outbound {
+        private final Connection connection;
+        private final ArrayDeque<Exchange> exchanges = new ArrayDeque<>();
+
+        private Completions(Connection connection) {
+            this.connection = connection;
+        }
+
+        // Returns this piece, to be queued right after the exchange's response.
+        public Outbound add(Exchange exchange) {
+            exchanges.add(exchange);
+            return this;
+        }
+
+        @Override
+        public long writeTo(SocketChannel socket) {
+            return 0;
+        }
+
+        @Override
+        public long remaining() {
+            return 0;
+        }
+
+        @Override
+        public ByteBuffer buffer() {
+            return EMPTY;
+        }
+
+        @Override
+        public void close() {
+            Exchange exchange = exchanges.poll();
+            if (exchange == null) return;
+            long bytes = connection.takeBytesSentSinceLog();
+            HttpRequest request = exchange.getRequest();
+            request(connection.getRemoteAddress(),
+                    request != null ? request.getMethod() : null,
+                    request != null ? request.getPath() : null,
+                    exchange.getResponse().getStatusCode(), bytes,
+                    System.nanoTime() - exchange.getStarted());
+        }
+    }
+
+    public Completions completions(Connection connection) {
+        return new Completions(connection);
+    }
+
+    public void request(SocketAddress remote, String method, String path, int status, long bytes, long durationNanos) {
+        if (!isEnabled()) return;
+        if (sample > 1 && ThreadLocalRandom.current().nextInt(sample) != 0) return;
+        long sequence = claim();
+        if (sequence < 0) return;
+        Record record = ring[(int) (sequence & mask)];
+        record.time = System.currentTimeMillis();
+        record.remote = remote;
+        record.method = method;
+        record.path = path;
+        record.status = status;
+        record.bytes = bytes;
+        record.durationNanos = durationNanos;
+        record.error = null;
+        record.sequence = sequence;
+    }
+
+    // Per-connection failures, such as a client resetting the connection.
+    // They go to stderr when there is no access log.
+    public void error(SocketAddress remote, String message) {
+        if (!isEnabled()) {
+            System.err.println(message);
+            return;
+        }
+        long sequence = claim();
+        if (sequence < 0) return;
+        Record record = ring[(int) (sequence & mask)];
+        record.time = System.currentTimeMillis();
+        record.remote = remote;
+        record.method = null;
+        record.path = null;
+        record.error = message;
+        record.sequence = sequence;
+    }
+
+    // The sequence number of a free slot, or -1 when the ring is full. A
+    // slot is free once the writer has moved past the record that last used
+    // it; writing the sequence number into the slot hands it to the writer.
+    private long claim() {
+        while (true) {
+            long sequence = claimed.get();
+            if (sequence - consumed >= ring.length) {
+                dropped.increment();
+                return -1;
+            }
+            if (claimed.compareAndSet(sequence, sequence + 1)) {
+                return sequence;
+            }
+        }
+    }
+
+    private void writeLoop() {
+        while (true) {
+            long next = consumed;
+            Record record = ring[(int) (next & mask)];
+            if (record.sequence != next) {
+                reportDrops();
+                flush();
+                try {
+                    Thread.sleep(IDLE_SLEEP_MS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                continue;
+            }
+            format(record);
+            record.remote = null;
+            record.method = null;
+            record.path = null;
+            record.error = null;
+            consumed = next + 1;
+            written++;
+            reportDrops();
+        }
+    }
+
+    private void reportDrops() {
+        long drops = dropped.sum();
+        if (drops == reportedDrops) return;
+        line.setLength(0);
+        line.append("time=").append(Instant.ofEpochMilli(System.currentTimeMillis()))
+                .append(" level=warn msg=\"access log buffer full\" dropped=").append(drops - reportedDrops);
+        reportedDrops = drops;
+        append();
+    }
+
+    private void format(Record record) {
+        line.setLength(0);
+        line.append("time=").append(Instant.ofEpochMilli(record.time));
+        line.append(" remote=").append(address(record.remote));
+        if (record.error != null) {
+            line.append(" level=error msg=");
+            quote(record.error);
+        } else {
+            line.append(" method=").append(record.method != null ? record.method : "-");
+            line.append(" path=");
+            quote(record.path != null ? record.path : "-");
+            line.append(" status=").append(record.status);
+            line.append(" bytes=").append(record.bytes);
+            long micros = record.durationNanos / 1000;
+            line.append(" duration_ms=").append(micros / 1000).append('.');
+            long fraction = micros % 1000;
+            if (fraction < 100) line.append('0');
+            if (fraction < 10) line.append('0');
+            line.append(fraction);
+        }
+        append();
+    }
+
+    private static String address(SocketAddress remote) {
+        if (remote instanceof InetSocketAddress) {
+            InetSocketAddress inet = (InetSocketAddress) remote;
+            return inet.getAddress() != null ? inet.getAddress().getHostAddress() + ":" + inet.getPort() : inet.toString();
+        }
+        return remote != null ? remote.toString() : "-";
+    }
+
+    private void quote(String value) {
+        line.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                line.append('\\').append(c);
+            } else if (c < 0x20) {
+                line.append("\\x").append(Character.forDigit(c >> 4, 16)).append(Character.forDigit(c & 15, 16));
+            } else {
+                line.append(c);
+            }
+        }
+        line.append('"');
+    }
+
+    // Adds the current line to the batch, writing the batch out first if
+    // the line does not fit.
+    private void append() {
+        line.append('\n');
+        byte[] bytes = line.toString().getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > batch.remaining()) {
+            flush();
+            if (bytes.length > batch.capacity()) return;
+        }
+        batch.put(bytes);
+    }
+
+    private void flush() {
+        if (batch.position() == 0) return;
+        batch.flip();
+        try {
+            while (batch.hasRemaining()) {
+                fileBytes += channel.write(batch);
+            }
+            if (fileBytes >= maxBytes) {
+                rotate();
+            }
+        } catch (IOException e) {
+            System.err.println("Access log write failed: " + e.getMessage());
+            if (!channel.isOpen()) {
+                try {
+                    open();
+                } catch (IOException ex) {
+                    // try again with the next batch
+                }
+            }
+        }
+        batch.clear();
+    }
+
+    // access.log becomes access.log.1, access.log.1 becomes access.log.2,
+    // and so on; the oldest beyond access_log_max_files is deleted.
+    private void rotate() throws IOException {
+        channel.close();
+        Files.deleteIfExists(Paths.get(file + "." + maxFiles));
+        for (int i = maxFiles - 1; i >= 1; i--) {
+            Path older = Paths.get(file + "." + i);
+            if (Files.exists(older)) {
+                Files.move(older, Paths.get(file + "." + (i + 1)), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        if (maxFiles > 0) {
+            Files.move(file, Paths.get(file + ".1"), StandardCopyOption.REPLACE_EXISTING);
+        } else {
+            Files.delete(file);
+        }
+        open();
+    }
+
+    private void open() throws IOException {
+        Path parent = file.toAbsolutePath().getParent();
+        if (parent != null) Files.createDirectories(parent);
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        fileBytes = channel.size();
+    }
+}
@@ -0,0 +1,53 @@
+package com.localserver;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+// Receives a request body while HttpParser reads it off the socket, so the
+// body never has to be held in the connection's read buffer.
+public interface BodySink {
+    // Consumes all remaining bytes of data.
+    void write(ByteBuffer data) throws IOException;
+
+    // Called once the whole body has arrived.
+    void finish(HttpRequest request) throws IOException;
+
+    // Called when the body will never complete (bad input, closed socket).
+    void abort();
+
+    // Collects the body in memory and hands it to the request as a byte[].
+    static BodySink memory(long expectedLength) {
+        ByteArrayOutputStream body = new ByteArrayOutputStream((int) Math.min(Math.max(expectedLength, 32), 65536));
+        return new BodySink() {
+            private byte[] scratch;
+
+            @Override
+            public void write(ByteBuffer data) {
+                if (data.hasArray()) {
+                    body.write(data.array(), data.arrayOffset() + data.position(), data.remaining());
+                    data.position(data.limit());
+                    return;
+                }
+                // Direct read buffers are copied out through one reused array.
+                if (scratch == null) {
+                    scratch = new byte[Math.min(data.remaining(), 8192)];
+                }
+                while (data.hasRemaining()) {
+                    int n = Math.min(scratch.length, data.remaining());
+                    data.get(scratch, 0, n);
+                    body.write(scratch, 0, n);
+                }
+            }
+
+            @Override
+            public void finish(HttpRequest request) {
+                request.setBody(body.toByteArray());
+            }
+
+            @Override
+            public void abort() {
+            }
+        };
+    }
+}
@@ -0,0 +1,156 @@
+package com.localserver;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+// Direct buffers for socket I/O, owned by one reactor and only touched from
+// its thread, so no locking is needed. Memory is allocated in slabs of
+// buffer_pool_slab_bytes, each cut into chunks of one size class (8, 16,
+// 32 or 64 KiB) that are handed out and taken back through per-class free
+// lists. Once buffer_pool_max_bytes of slabs exist, or for requests above
+// the largest class, plain heap buffers are handed out instead.
+//
+// A chunk that stays lent for longer than buffer_leak_threshold_ms is
+// reported as a probable leak; with buffer_leak_tracing the report includes
+// the stack that acquired it.
+public class BufferPool {
+    private static final int MIN_SHIFT = 13;
+    private static final int CLASSES = 4;
+    public static final int MAX_CHUNK = 1 << (MIN_SHIFT + CLASSES - 1);
+    private static final long LEAK_CHECK_INTERVAL_MS = 1000;
+
+    public static final class Chunk {
+        private final ByteBuffer buffer;
+        private final int sizeClass; // -1 for unpooled heap buffers
+        private boolean lent;
+        private boolean reported;
+        private long acquiredAt;
+        private Throwable trace;
+
+        private Chunk(ByteBuffer buffer, int sizeClass) {
+            this.buffer = buffer;
+            this.sizeClass = sizeClass;
+        }
+
+        public ByteBuffer buffer() { return buffer; }
+    }
+
+    private final int slabBytes;
+    private final long maxBytes;
+    private final long leakThresholdMs;
+    private final boolean leakTracing;
+    // No generic array creation; only ArrayDeque<Chunk>s go in.
+    @SuppressWarnings("unchecked")
+    private final ArrayDeque<Chunk>[] free = (ArrayDeque<Chunk>[]) new ArrayDeque<?>[CLASSES];
+    private final List<Chunk> pooled = new ArrayList<>();
+    private final ByteBuffer empty = ByteBuffer.allocateDirect(0);
+    private final int[] lent = new int[CLASSES];
+    // Only the reactor writes these; other threads read them for metrics.
+    private volatile long slabCount;
+    private volatile long acquired;
+    private volatile long released;
+    private volatile long unpooled;
+    private volatile long leaks;
+    private long lastLeakCheck;
+
+    public BufferPool(Map<String, Object> config) {
+        this.slabBytes = Math.max(ConfigLoader.getInt(config, "buffer_pool_slab_bytes", 1 << 20), MAX_CHUNK);
+        this.maxBytes = ConfigLoader.getInt(config, "buffer_pool_max_bytes", 64 << 20);
+        this.leakThresholdMs = ConfigLoader.getInt(config, "buffer_leak_threshold_ms", 60000);
+        this.leakTracing = Boolean.TRUE.equals(config.get("buffer_leak_tracing"));
+        for (int i = 0; i < CLASSES; i++) {
+            free[i] = new ArrayDeque<>();
+        }
+    }
+
+    // A zero-length buffer for connections that hold no chunk.
+    public ByteBuffer empty() { return empty; }
+
+    // A cleared chunk with room for at least size bytes.
+    public Chunk acquire(int size) {
+        int sizeClass = sizeClass(size);
+        Chunk chunk;
+        if (sizeClass == -1 || (free[sizeClass].isEmpty() && !grow(sizeClass))) {
+            unpooled++;
+            chunk = new Chunk(ByteBuffer.allocate(size), -1);
+        } else {
+            chunk = free[sizeClass].poll();
+            lent[sizeClass]++;
+        }
+        chunk.lent = true;
+        chunk.reported = false;
+        chunk.acquiredAt = System.currentTimeMillis();
+        chunk.trace = leakTracing ? new Throwable("Buffer acquired here") : null;
+        chunk.buffer.clear();
+        acquired++;
+        return chunk;
+    }
+
+    public void release(Chunk chunk) {
+        if (!chunk.lent) {
+            throw new IllegalStateException("Buffer released twice");
+        }
+        chunk.lent = false;
+        chunk.trace = null;
+        released++;
+        if (chunk.sizeClass >= 0) {
+            lent[chunk.sizeClass]--;
+            free[chunk.sizeClass].push(chunk);
+        }
+    }
+
+    // Cuts a new slab into chunks of one class, if the budget allows.
+    private boolean grow(int sizeClass) {
+        if ((slabCount + 1) * slabBytes > maxBytes) return false;
+        int chunkSize = 1 << (MIN_SHIFT + sizeClass);
+        ByteBuffer slab = ByteBuffer.allocateDirect(slabBytes);
+        for (int offset = 0; offset + chunkSize <= slabBytes; offset += chunkSize) {
+            slab.limit(offset + chunkSize).position(offset);
+            Chunk chunk = new Chunk(slab.slice(), sizeClass);
+            free[sizeClass].push(chunk);
+            pooled.add(chunk);
+        }
+        slabCount++;
+        return true;
+    }
+
+    private static int sizeClass(int size) {
+        for (int i = 0; i < CLASSES; i++) {
+            if (size <= 1 << (MIN_SHIFT + i)) return i;
+        }
+        return -1;
+    }
+
+    // Reports pooled chunks lent for longer than the threshold. Cheap to call
+    // on every loop iteration; the chunks are walked at most once a second.
+    public void checkLeaks(long now) {
+        if (now - lastLeakCheck < LEAK_CHECK_INTERVAL_MS) return;
+        lastLeakCheck = now;
+        for (Chunk chunk : pooled) {
+            if (!chunk.lent || chunk.reported || now - chunk.acquiredAt < leakThresholdMs) continue;
+            chunk.reported = true;
+            leaks++;
+            System.err.println("Possible buffer leak: " + chunk.buffer.capacity() + " byte buffer held for "
+                    + (now - chunk.acquiredAt) + " ms");
+            if (chunk.trace != null) {
+                chunk.trace.printStackTrace();
+            }
+        }
+    }
+
+    public long getSlabBytes() { return slabCount * slabBytes; }
+    public long getAcquireCount() { return acquired; }
+    public long getReleaseCount() { return released; }
+    public long getUnpooledCount() { return unpooled; }
+    public long getLeakCount() { return leaks; }
+
+    // Chunks of the given class (0 = 8 KiB, 1 = 16 KiB, ...) currently lent
+    // out and currently free.
+    public int getLentCount(int sizeClass) { return lent[sizeClass]; }
+    public int getFreeCount(int sizeClass) { return free[sizeClass].size(); }
+    public static int getSizeClasses() { return CLASSES; }
+    public static int getChunkSize(int sizeClass) { return 1 << (MIN_SHIFT + sizeClass); }
+}
@@ -1,101 +1,332 @@
-package com.localserver;
-
-import java.io.*;
-import java.nio.file.Path;
-import java.util.*;
-
-public class CGIHandler {
-    public HttpResponse execute(HttpRequest request, Path scriptPath) {
-        try {
-            ProcessBuilder pb = new ProcessBuilder(scriptPath.toAbsolutePath().toString());
-            Map<String, String> env = pb.environment();
-            
-            // Set CGI environment variables
-            env.put("REQUEST_METHOD", request.getMethod());
-            String query = request.getQueryString();
-            env.put("QUERY_STRING", query != null ? query : "");
-            env.put("PATH_INFO", request.getPath());
-            env.put("SERVER_PROTOCOL", "HTTP/1.1");
-            env.put("REMOTE_ADDR", "127.0.0.1"); // Should get from socket
-            
-            // Start process
-            pb.redirectErrorStream(true); // Merge stderr into stdout
-            Process process = pb.start();
-            
-            // Write body to process input stream (for POST)
-            if (request.getBody() != null && !request.getBody().isEmpty()) {
-                try (OutputStream os = process.getOutputStream()) {
-                    os.write(request.getBody().getBytes());
-                    os.flush();
-                }
-            }
-            
-            // Read output
-            InputStream is = process.getInputStream();
-            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
-            int nRead;
-            byte[] data = new byte[1024];
-            while ((nRead = is.read(data, 0, data.length)) != -1) {
-                buffer.write(data, 0, nRead);
-            }
-            buffer.flush();
-            String output = new String(buffer.toByteArray());
-            // System.out.println("CGI Output: [" + output + "]");
-            
-            HttpResponse response = new HttpResponse();
-            
-            // Simple parsing of CGI output
-            String delimiter = "\r\n\r\n";
-            int bodyStart = output.indexOf(delimiter);
-            if (bodyStart == -1) {
-                delimiter = "\n\n";
-                bodyStart = output.indexOf(delimiter);
-            }
-            // System.out.println("BodyStart: " + bodyStart);
-
-            if (bodyStart != -1) {
-                String headersPart = output.substring(0, bodyStart);
-                String bodyPart = output.substring(bodyStart + delimiter.length());
-                
-                String[] lines = headersPart.split("\n");
-
-                String contentType = "text/html"; // Default for CGI? Or plain?
-                
-                for (String line : lines) {
-                    line = line.trim();
-                    if (line.isEmpty()) continue;
-                    
-                    int colon = line.indexOf(":");
-                    if (colon != -1) {
-                         String key = line.substring(0, colon).trim();
-                         String value = line.substring(colon + 1).trim();
-                         if (key.equalsIgnoreCase("Status")) {
-                             // Status: 200 OK
-                             String[] statusParts = value.split(" ", 2);
-                             if (statusParts.length >= 2) {
-                                 response.setStatus(Integer.parseInt(statusParts[0]), statusParts[1]);
-                             }
-                         } else {
-                             response.setHeader(key, value);
-                             if (key.equalsIgnoreCase("Content-Type")) {
-                                 contentType = value;
-                             }
-                         }
-                    }
-                }
-                response.setBody(bodyPart, contentType); 
-            } else {
-                response.setBody(output);
-            }
-            
-            return response;
-            
-        } catch (IOException e) {
-            e.printStackTrace();
-            HttpResponse err = new HttpResponse();
-            err.setStatus(500, "CGI Error");
-            err.setBody("CGI execution failed: " + e.getMessage());
-            return err;
-        }
-    }
-}
+package com.localserver;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+// Runs CGI scripts, either as a new process per request or in a persistent
+// worker (see CGIWorkerPool). The handler only waits for the CGI headers;
+// the body is streamed to the client as the script produces it. Every run
+// is bounded by the route's cgi_timeout_ms, and forked processes are
+// limited globally by cgi_max_processes.
+public class CGIHandler {
+    private static final int MAX_HEAD_SIZE = 65536;
+    // Bodies up to this size fit in any pipe buffer, so writing them on the
+    // calling thread cannot block.
+    private static final int INLINE_BODY_BYTES = 4096;
+    // Kills runs that exceed their timeout, and workers that miss a ping.
+    static final ScheduledExecutorService TIMER = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "cgi-timeout");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final int maxProcesses;
+    private final Semaphore processes;
+    // Feeds larger request bodies to forked scripts; at most one writer per
+    // running process.
+    private final ThreadPoolExecutor stdinWriters;
+    private final LongAdder started = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder timeouts = new LongAdder();
+
+    public CGIHandler(Map<String, Object> config) {
+        this.maxProcesses = ConfigLoader.getInt(config, "cgi_max_processes", 32);
+        this.processes = new Semaphore(maxProcesses);
+        this.stdinWriters = new ThreadPoolExecutor(maxProcesses, maxProcesses, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), r -> {
+                    Thread thread = new Thread(r, "cgi-stdin");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        stdinWriters.allowCoreThreadTimeOut(true);
+    }
+
+    public int getRunningCount() { return maxProcesses - processes.availablePermits(); }
+    public long getStartedCount() { return started.sum(); }
+    public long getRejectedCount() { return rejected.sum(); }
+    public long getTimeoutCount() { return timeouts.sum(); }
+
+    public HttpResponse execute(HttpRequest request, Path scriptPath, long timeoutMs) {
+        if (!processes.tryAcquire()) {
+            rejected.increment();
+            return busy("Too many CGI processes running");
+        }
+        Process process;
+        try {
+            ProcessBuilder pb = new ProcessBuilder(scriptPath.toAbsolutePath().toString());
+            pb.environment().putAll(environment(request, scriptPath));
+            pb.redirectError(ProcessBuilder.Redirect.INHERIT);
+            process = pb.start();
+            started.increment();
+        } catch (IOException e) {
+            processes.release();
+            return error("CGI execution failed: " + e.getMessage());
+        }
+        writeBody(process, request.getBodyBytes());
+        return respond(process.getInputStream(), timeoutMs, process::destroyForcibly, completed -> {
+            process.destroyForcibly();
+            processes.release();
+        });
+    }
+
+    // Runs the script in one of the pool's persistent workers instead of
+    // starting a new process.
+    public HttpResponse execute(HttpRequest request, Path scriptPath, CGIWorkerPool pool, long timeoutMs) {
+        CGIWorkerPool.Worker worker;
+        try {
+            worker = pool.acquire();
+        } catch (CGIWorkerPool.QueueTimeoutException e) {
+            rejected.increment();
+            return busy(e.getMessage());
+        } catch (IOException e) {
+            return error("CGI worker failed to start: " + e.getMessage());
+        }
+        InputStream output;
+        try {
+            output = worker.send(environment(request, scriptPath), request.getBodyBytes());
+        } catch (IOException e) {
+            pool.release(worker, false);
+            return error("CGI execution failed: " + e.getMessage());
+        }
+        // A worker that stopped half way through a request is out of step
+        // with the protocol, so only fully read ones go back to the pool.
+        return respond(output, timeoutMs, worker::kill, completed -> pool.release(worker, completed));
+    }
+
+    // The CGI/1.1 meta-variables (RFC 3875) for one request. Each request
+    // header becomes HTTP_<NAME>, upper-cased with '-' turned into '_', and
+    // repeated headers are joined with ", ". Content-Type and Content-Length
+    // already have their own variables, and Proxy is left out so a client
+    // cannot set HTTP_PROXY for the script ("httpoxy"). Values with a NUL
+    // byte cannot go into an environment and are dropped.
+    static Map<String, String> environment(HttpRequest request, Path scriptPath) {
+        Map<String, String> env = new HashMap<>();
+
+        // Set CGI environment variables
+        env.put("REQUEST_METHOD", request.getMethod());
+        String query = request.getQueryString();
+        env.put("QUERY_STRING", query != null ? query : "");
+        env.put("PATH_INFO", request.getPath());
+        env.put("SCRIPT_FILENAME", scriptPath.toAbsolutePath().toString());
+        env.put("CONTENT_LENGTH", String.valueOf(request.getBodyBytes().length));
+        String contentType = request.getHeader("Content-Type");
+        if (contentType != null) {
+            env.put("CONTENT_TYPE", contentType);
+        }
+        env.put("SERVER_PROTOCOL", "HTTP/1.1");
+        SocketAddress remote = request.getRemoteAddress();
+        if (remote instanceof InetSocketAddress) {
+            InetSocketAddress inet = (InetSocketAddress) remote;
+            env.put("REMOTE_ADDR", inet.getAddress() != null ? inet.getAddress().getHostAddress() : inet.getHostString());
+            env.put("REMOTE_PORT", String.valueOf(inet.getPort()));
+        }
+        for (int i = 0; i < request.getHeaderCount(); i++) {
+            String name = request.getHeaderName(i);
+            if (name.equalsIgnoreCase("Content-Type") || name.equalsIgnoreCase("Content-Length")
+                    || name.equalsIgnoreCase("Proxy")) {
+                continue;
+            }
+            StringBuilder key = new StringBuilder(5 + name.length()).append("HTTP_");
+            for (int j = 0; j < name.length(); j++) {
+                char c = name.charAt(j);
+                key.append(c == '-' ? '_' : Character.toUpperCase(c));
+            }
+            String value = request.getHeaderValue(i);
+            if (value.indexOf('\0') != -1) continue; // cannot be passed in an environment
+            env.merge(key.toString(), value, (a, b) -> a + ", " + b);
+        }
+        return env;
+    }
+
+    // A body larger than a pipe buffer is fed from a writer thread, so a
+    // script that writes before it reads cannot deadlock against a full
+    // stdin pipe.
+    private void writeBody(Process process, byte[] body) {
+        if (body.length <= INLINE_BODY_BYTES) {
+            try (OutputStream os = process.getOutputStream()) {
+                os.write(body);
+            } catch (IOException e) {
+                // The script exited without reading its input.
+            }
+            return;
+        }
+        stdinWriters.execute(() -> {
+            try (OutputStream os = process.getOutputStream()) {
+                os.write(body);
+            } catch (IOException e) {
+                // The script exited without reading all of its input.
+            }
+        });
+    }
+
+    // Reads the CGI headers from the script output and returns a response
+    // whose body streams the rest. kill is run when the timeout expires;
+    // done is told whether the output was read to the end.
+    private HttpResponse respond(InputStream output, long timeoutMs, Runnable kill, CompletionListener done) {
+        AtomicBoolean timedOut = new AtomicBoolean();
+        ScheduledFuture<?> timer = TIMER.schedule(() -> {
+            timeouts.increment();
+            timedOut.set(true);
+            kill.run();
+        }, timeoutMs, TimeUnit.MILLISECONDS);
+
+        byte[] head = new byte[4096];
+        int length = 0;
+        int bodyStart = -1;
+        int headEnd = -1;
+        try {
+            while (bodyStart == -1) {
+                if (length == head.length) {
+                    if (head.length >= MAX_HEAD_SIZE) {
+                        throw new IOException("CGI headers too large");
+                    }
+                    head = Arrays.copyOf(head, head.length * 2);
+                }
+                int n = output.read(head, length, head.length - length);
+                if (n == -1) break;
+                int from = Math.max(0, length - 3);
+                length += n;
+                for (int i = from; i < length && bodyStart == -1; i++) {
+                    if (head[i] != '\n') continue;
+                    if (i + 1 < length && head[i + 1] == '\n') {
+                        headEnd = i;
+                        bodyStart = i + 2;
+                    } else if (i + 2 < length && head[i + 1] == '\r' && head[i + 2] == '\n') {
+                        headEnd = i;
+                        bodyStart = i + 3;
+                    }
+                }
+            }
+        } catch (IOException e) {
+            timer.cancel(false);
+            done.finished(false);
+            if (timedOut.get()) {
+                return timeout();
+            }
+            return error("CGI execution failed: " + e.getMessage());
+        }
+
+        HttpResponse response = new HttpResponse();
+        String contentType = "text/html"; // Default for CGI? Or plain?
+        if (bodyStart == -1) {
+            // No header block: the whole output is the body.
+            if (timedOut.get()) {
+                timer.cancel(false);
+                done.finished(false);
+                return timeout();
+            }
+            contentType = "text/plain; charset=utf-8";
+            bodyStart = 0;
+        } else {
+            contentType = parseHeaders(new String(head, 0, headEnd, StandardCharsets.ISO_8859_1), response, contentType);
+        }
+
+        byte[] leftover = Arrays.copyOfRange(head, bodyStart, length);
+        response.setBody(new ResponseStream(out -> {
+            boolean completed = false;
+            try {
+                out.write(leftover);
+                byte[] buf = new byte[8192];
+                int n;
+                while ((n = output.read(buf)) != -1) {
+                    out.write(buf, 0, n);
+                    // Pass output on as soon as the script produces it.
+                    if (output.available() == 0) out.flush();
+                }
+                // A killed process may just look like the end of its output.
+                if (timedOut.get()) {
+                    throw new IOException("CGI script timed out");
+                }
+                completed = true;
+            } catch (IOException e) {
+                if (timedOut.get()) {
+                    throw new IOException("CGI script timed out");
+                }
+                throw e;
+            } finally {
+                timer.cancel(false);
+                done.finished(completed && !timedOut.get());
+            }
+        }), contentType);
+        return response;
+    }
+
+    // Applies Status, Location and other CGI headers to the response and
+    // returns the content type.
+    private static String parseHeaders(String headersPart, HttpResponse response, String contentType) {
+        String[] lines = headersPart.split("\n");
+        boolean hasStatus = false;
+
+        for (String line : lines) {
+            line = line.trim();
+            if (line.isEmpty()) continue;
+
+            int colon = line.indexOf(":");
+            if (colon != -1) {
+                 String key = line.substring(0, colon).trim();
+                 String value = line.substring(colon + 1).trim();
+                 if (key.equalsIgnoreCase("Status")) {
+                     // Status: 200 OK
+                     String[] statusParts = value.split(" ", 2);
+                     try {
+                         response.setStatus(Integer.parseInt(statusParts[0]),
+                                 statusParts.length >= 2 ? statusParts[1] : "");
+                         hasStatus = true;
+                     } catch (NumberFormatException e) {
+                         // Keep 200 for a malformed status.
+                     }
+                 } else if (key.equalsIgnoreCase("Content-Type")) {
+                     contentType = value;
+                 } else if (!key.equalsIgnoreCase("Content-Length")
+                         && !key.equalsIgnoreCase("Transfer-Encoding")
+                         && !key.equalsIgnoreCase("Connection")) {
+                     // Framing headers belong to the server.
+                     response.setHeader(key, value);
+                     if (key.equalsIgnoreCase("Location") && !hasStatus) {
+                         response.setStatus(302, "Found");
+                     }
+                 }
+            }
+        }
+        return contentType;
+    }
+
+    private static HttpResponse busy(String message) {
+        HttpResponse busy = new HttpResponse();
+        busy.setStatus(503, "Service Unavailable");
+        busy.setHeader("Retry-After", "1");
+        busy.setBody(message);
+        return busy;
+    }
+
+    private static HttpResponse timeout() {
+        HttpResponse err = new HttpResponse();
+        err.setStatus(504, "Gateway Timeout");
+        err.setBody("CGI script timed out");
+        return err;
+    }
+
+    private static HttpResponse error(String message) {
+        HttpResponse err = new HttpResponse();
+        err.setStatus(500, "CGI Error");
+        err.setBody(message);
+        return err;
+    }
+
+    private interface CompletionListener {
+        void finished(boolean completed);
+    }
+}
@@ -0,0 +1,274 @@
+package com.localserver;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.CodeSource;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+// Long-lived script runners for one CGI route ("cgi_workers" > 0). Each
+// worker is a process running cgi_worker.py that executes one request at
+// a time; requests and output are exchanged as frames over its stdin and
+// stdout (see cgi_worker.py for the format). Workers are started on
+// demand, replaced after cgi_worker_max_requests requests or when they
+// fail, and pinged while idle. When all workers are busy a request waits
+// up to cgi_worker_queue_timeout_ms for one to come free.
+public class CGIWorkerPool {
+    private final String name;
+    private final Map<String, Object> settings;
+    private final List<String> command;
+    private final int size;
+    private final int maxRequests;
+    private final long queueTimeoutMs;
+    private final long healthIntervalMs;
+    private final LinkedBlockingDeque<Worker> idle = new LinkedBlockingDeque<>();
+    private int started;
+    private volatile boolean closed;
+    private Thread health;
+
+    public static class QueueTimeoutException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        public QueueTimeoutException(String message) {
+            super(message);
+        }
+    }
+
+    public CGIWorkerPool(String name, Map<String, Object> route) {
+        this.name = name;
+        this.settings = route;
+        this.command = commandOf(route.get("cgi_worker_command"));
+        this.size = ConfigLoader.getInt(route, "cgi_workers", 0);
+        this.maxRequests = ConfigLoader.getInt(route, "cgi_worker_max_requests", 1000);
+        this.queueTimeoutMs = ConfigLoader.getInt(route, "cgi_worker_queue_timeout_ms", 5000);
+        this.healthIntervalMs = ConfigLoader.getInt(route, "cgi_worker_health_interval_ms", 10000);
+        if (healthIntervalMs > 0) {
+            health = new Thread(this::checkHealth, "cgi-health " + name);
+            health.setDaemon(true);
+            health.start();
+        }
+    }
+
+    private static List<String> commandOf(Object configured) {
+        if (configured instanceof List) {
+            List<String> command = new ArrayList<>();
+            for (Object part : (List<Object>) configured) {
+                command.add(part.toString());
+            }
+            return command;
+        }
+        if (configured != null) {
+            return Collections.singletonList(configured.toString());
+        }
+        List<String> command = new ArrayList<>();
+        command.add("python3");
+        command.add(defaultScript().toString());
+        return command;
+    }
+
+    // cgi_worker.py ships with the server, so it is looked up from where
+    // the classes or jar were loaded: that directory or up to three above
+    // it (out/, server/target/classes). The working directory is the last
+    // resort.
+    static Path defaultScript() {
+        CodeSource source = CGIWorkerPool.class.getProtectionDomain().getCodeSource();
+        if (source != null) {
+            try {
+                Path dir = Paths.get(source.getLocation().toURI());
+                for (int i = 0; i < 4 && dir != null; i++, dir = dir.getParent()) {
+                    Path script = dir.resolve("cgi_worker.py");
+                    if (Files.isRegularFile(script)) return script;
+                }
+            } catch (URISyntaxException | IllegalArgumentException e) {
+                // not a file location
+            }
+        }
+        return Paths.get("cgi_worker.py");
+    }
+
+    // Takes an idle worker, starting one if the pool is not full yet, or
+    // waits for one up to the queue timeout.
+    public Worker acquire() throws IOException, QueueTimeoutException {
+        Worker worker = idle.pollFirst();
+        if (worker != null) return worker;
+        synchronized (this) {
+            if (started < size) {
+                started++;
+                try {
+                    return new Worker();
+                } catch (IOException e) {
+                    started--;
+                    throw e;
+                }
+            }
+        }
+        try {
+            worker = idle.pollFirst(queueTimeoutMs, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (worker == null) {
+            throw new QueueTimeoutException("All " + size + " CGI workers for " + name + " are busy");
+        }
+        return worker;
+    }
+
+    // The route settings the pool was created from.
+    public Map<String, Object> getSettings() { return settings; }
+
+    public synchronized int getStartedCount() { return started; }
+    public int getIdleCount() { return idle.size(); }
+
+    // Hands a worker back after a request. Workers that failed or served
+    // their quota are stopped; a replacement starts with the next request.
+    public void release(Worker worker, boolean healthy) {
+        if (healthy && !closed && worker.requests < maxRequests && worker.process.isAlive()) {
+            idle.addFirst(worker);
+        } else {
+            retire(worker);
+        }
+    }
+
+    // Stops the idle workers and the health check once the route is gone
+    // after a reload. Busy workers finish their request and are stopped
+    // when they are released.
+    public void close() {
+        closed = true;
+        if (health != null) health.interrupt();
+        List<Worker> stopped = new ArrayList<>();
+        idle.drainTo(stopped);
+        for (Worker worker : stopped) {
+            retire(worker);
+        }
+    }
+
+    private void retire(Worker worker) {
+        worker.process.destroy();
+        synchronized (this) {
+            started--;
+        }
+    }
+
+    // Pings every idle worker once per interval; one that does not answer
+    // within the interval is killed.
+    private void checkHealth() {
+        while (true) {
+            try {
+                Thread.sleep(healthIntervalMs);
+            } catch (InterruptedException e) {
+                return;
+            }
+            List<Worker> checked = new ArrayList<>();
+            idle.drainTo(checked);
+            for (Worker worker : checked) {
+                release(worker, worker.ping(healthIntervalMs));
+            }
+        }
+    }
+
+    public class Worker {
+        private final Process process;
+        private final DataInputStream in;
+        private final DataOutputStream out;
+        private int requests;
+
+        Worker() throws IOException {
+            ProcessBuilder pb = new ProcessBuilder(command);
+            pb.redirectError(ProcessBuilder.Redirect.INHERIT);
+            process = pb.start();
+            in = new DataInputStream(new BufferedInputStream(process.getInputStream()));
+            out = new DataOutputStream(new BufferedOutputStream(process.getOutputStream()));
+        }
+
+        // Sends one request. The returned stream yields the script output
+        // and ends when the worker reports the request finished.
+        public InputStream send(Map<String, String> env, byte[] body) throws IOException {
+            requests++;
+            StringBuilder pairs = new StringBuilder();
+            for (Map.Entry<String, String> entry : env.entrySet()) {
+                pairs.append(entry.getKey()).append('=').append(entry.getValue()).append('\0');
+            }
+            writeFrame('E', pairs.toString().getBytes(StandardCharsets.UTF_8));
+            if (body.length > 0) {
+                writeFrame('I', body);
+            }
+            writeFrame('I', new byte[0]);
+            out.flush();
+            return new ScriptOutput();
+        }
+
+        // Used to enforce a request timeout; the pool retires the worker.
+        public void kill() {
+            process.destroyForcibly();
+        }
+
+        // A worker that does not answer in time is killed by the shared CGI
+        // timer, which ends the blocking read.
+        private boolean ping(long timeoutMs) {
+            ScheduledFuture<?> watchdog = CGIHandler.TIMER.schedule(process::destroyForcibly,
+                    timeoutMs, TimeUnit.MILLISECONDS);
+            try {
+                writeFrame('P', new byte[0]);
+                out.flush();
+                return in.readByte() == 'P' && in.readInt() == 0;
+            } catch (IOException e) {
+                return false;
+            } finally {
+                watchdog.cancel(false);
+            }
+        }
+
+        private void writeFrame(char type, byte[] payload) throws IOException {
+            out.writeByte(type);
+            out.writeInt(payload.length);
+            out.write(payload);
+        }
+
+        // Unwraps O frames until the D frame.
+        private class ScriptOutput extends InputStream {
+            private int left;
+            private boolean done;
+
+            @Override
+            public int read() throws IOException {
+                byte[] one = new byte[1];
+                return read(one, 0, 1) == -1 ? -1 : one[0] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                while (left == 0) {
+                    if (done) return -1;
+                    byte type = in.readByte();
+                    int length = in.readInt();
+                    if (type == 'D') {
+                        done = true;
+                    } else if (type == 'O') {
+                        left = length;
+                    } else {
+                        throw new IOException("Unexpected frame from CGI worker: " + (char) type);
+                    }
+                }
+                int n = in.read(b, off, Math.min(len, left));
+                if (n == -1) throw new EOFException("CGI worker exited");
+                left -= n;
+                return n;
+            }
+        }
+    }
+}
@@ -0,0 +1,172 @@
+package com.localserver;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+// Content-Encoding negotiation and gzip/deflate compression for text-like
+// responses. Static files reuse precompressed or cached variants (see
+// StaticFiles); in-memory bodies such as CGI output are compressed here.
+public class Compression {
+    public static final String GZIP = "gzip";
+    public static final String DEFLATE = "deflate";
+
+    private static final List<String> DEFAULT_TYPES = Arrays.asList(
+            "text/html", "text/css", "text/plain", "text/xml", "application/javascript",
+            "application/json", "application/xml", "image/svg+xml");
+
+    private final boolean enabled;
+    private final int minSize;
+    private final int level;
+    private final Set<String> types;
+
+    public Compression(Map<String, Object> config) {
+        this.enabled = !Boolean.FALSE.equals(config.get("compression"));
+        this.minSize = ConfigLoader.getInt(config, "compression_min_size", 1024);
+        this.level = ConfigLoader.getInt(config, "compression_level", 6);
+        Object configured = config.get("compression_types");
+        this.types = new HashSet<>();
+        for (Object type : configured instanceof List ? (List<Object>) configured : DEFAULT_TYPES) {
+            types.add(type.toString());
+        }
+    }
+
+    // Whether responses of this type and size are worth compressing; these
+    // responses also vary on Accept-Encoding.
+    public boolean isCompressible(String contentType, long length) {
+        if (!enabled || length < minSize || contentType == null) return false;
+        int semicolon = contentType.indexOf(';');
+        String type = (semicolon == -1 ? contentType : contentType.substring(0, semicolon)).trim();
+        return types.contains(type);
+    }
+
+    // Picks gzip or deflate from Accept-Encoding, honouring q=0 exclusions,
+    // or returns null for identity.
+    public String negotiate(String acceptEncoding) {
+        if (acceptEncoding == null) return null;
+        float gzip = -1;
+        float deflate = -1;
+        float wildcard = 0;
+        for (String part : acceptEncoding.split(",")) {
+            String[] params = part.trim().split(";");
+            String coding = params[0].trim().toLowerCase();
+            float q = 1;
+            for (int i = 1; i < params.length; i++) {
+                String param = params[i].trim();
+                if (param.startsWith("q=")) {
+                    try {
+                        q = Float.parseFloat(param.substring(2));
+                    } catch (NumberFormatException e) {
+                        q = 0;
+                    }
+                }
+            }
+            if (coding.equals(GZIP) || coding.equals("x-gzip")) gzip = q;
+            else if (coding.equals(DEFLATE)) deflate = q;
+            else if (coding.equals("*")) wildcard = q;
+        }
+        // Codings not listed explicitly fall back to the "*" weight.
+        if (gzip < 0) gzip = wildcard;
+        if (deflate < 0) deflate = wildcard;
+        if (gzip > 0 && gzip >= deflate) return GZIP;
+        if (deflate > 0) return DEFLATE;
+        return null;
+    }
+
+    public byte[] compress(byte[] data, String encoding) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(64, data.length / 3));
+        try (OutputStream stream = open(out, encoding)) {
+            stream.write(data);
+        }
+        return out.toByteArray();
+    }
+
+    // Compressed output over out. The streams sync-flush, so flush() passes
+    // on everything written so far, which a streamed body relies on to reach
+    // the client before the producer is done.
+    public OutputStream open(OutputStream out, String encoding) throws IOException {
+        if (encoding.equals(GZIP)) {
+            return new GzipStream(out, level);
+        }
+        return new DeflateStream(out, level);
+    }
+
+    // A compressing stream whose Deflater can be released without finishing
+    // the stream, for a producer that fails half way. Closing releases it too.
+    private interface Abandonable {
+        void abandon();
+    }
+
+    private static final class GzipStream extends GZIPOutputStream implements Abandonable {
+        GzipStream(OutputStream out, int level) throws IOException {
+            super(out, 8192, true);
+            def.setLevel(level);
+        }
+
+        @Override
+        public void abandon() {
+            def.end();
+        }
+    }
+
+    private static final class DeflateStream extends DeflaterOutputStream implements Abandonable {
+        DeflateStream(OutputStream out, int level) {
+            super(out, new Deflater(level), 8192, true);
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                def.end();
+            }
+        }
+
+        @Override
+        public void abandon() {
+            def.end();
+        }
+    }
+
+    // Compresses an in-memory body in place when the client accepts it. A
+    // streamed body of a compressible type is compressed as it is produced.
+    public void apply(HttpRequest request, HttpResponse response) {
+        byte[] body = response.getBody();
+        ResponseStream stream = response.getStream();
+        String contentType = response.getHeader("Content-Type");
+        long length = stream != null ? Long.MAX_VALUE : body.length;
+        if (response.getHeader("Content-Encoding") != null || !isCompressible(contentType, length)) return;
+        response.setHeader("Vary", "Accept-Encoding");
+        String encoding = negotiate(request.getHeader("Accept-Encoding"));
+        if (encoding == null) return;
+        if (stream != null) {
+            ResponseStream.Producer producer = stream.getProducer();
+            response.setBody(new ResponseStream(out -> {
+                OutputStream compressed = open(out, encoding);
+                try {
+                    producer.produce(compressed);
+                    compressed.close();
+                } finally {
+                    ((Abandonable) compressed).abandon();
+                }
+            }), contentType);
+            response.setHeader("Content-Encoding", encoding);
+            return;
+        }
+        try {
+            response.setBody(compress(body, encoding), contentType);
+            response.setHeader("Content-Encoding", encoding);
+        } catch (IOException e) {
+            // Leave the body uncompressed.
+        }
+    }
+}
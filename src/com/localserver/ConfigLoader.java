@@ -14,6 +14,16 @@ public class ConfigLoader {
         this.index = 0;
     }
 
+    private ConfigLoader(String json, int index) {
+        this.jsonContent = json.trim();
+        this.index = index;
+    }
+
+    // For JSON that is already in memory.
+    public static ConfigLoader fromString(String json) {
+        return new ConfigLoader(json, 0);
+    }
+
     public Map<String, Object> parse() {
         skipWhitespace();
         if (jsonContent.charAt(index) == '{') {
@@ -109,6 +119,17 @@ public class ConfigLoader {
         return Integer.parseInt(numStr);
     }
 
+    public static int getInt(Map<String, Object> config, String key, int defaultValue) {
+        Object value = config.get(key);
+        if (value instanceof Number) {
+            return ((Number) value).intValue();
+        }
+        if (value != null) {
+            return Integer.parseInt(value.toString());
+        }
+        return defaultValue;
+    }
+
     private void skipWhitespace() {
         while (index < jsonContent.length() && Character.isWhitespace(jsonContent.charAt(index))) {
             index++;
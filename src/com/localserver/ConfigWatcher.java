@@ -0,0 +1,87 @@
+package com.localserver;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+// Watches the config file and hands each new version, once it parses, to
+// the server. Editors often save in several steps (truncate and write, or
+// write a temporary file and rename it), so changes are only read after
+// the file has been quiet for DEBOUNCE_MS. A file that does not parse is
+// reported and the running configuration stays in place.
+public class ConfigWatcher {
+    private static final long DEBOUNCE_MS = 250;
+
+    private final Path file;
+    private final Consumer<Map<String, Object>> onChange;
+
+    public ConfigWatcher(Path file, Consumer<Map<String, Object>> onChange) {
+        this.file = file.toAbsolutePath().normalize();
+        this.onChange = onChange;
+    }
+
+    public void start() throws IOException {
+        // The directory is watched rather than the file, which a rename
+        // would replace.
+        WatchService watcher = FileSystems.getDefault().newWatchService();
+        file.getParent().register(watcher,
+                StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_MODIFY);
+        Thread thread = new Thread(() -> watch(watcher), "config-watch");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void watch(WatchService watcher) {
+        try {
+            while (true) {
+                WatchKey key = watcher.take();
+                boolean changed = drain(key);
+                // Keep collecting events until the file has settled.
+                while (true) {
+                    key = watcher.poll(DEBOUNCE_MS, TimeUnit.MILLISECONDS);
+                    if (key == null) break;
+                    changed |= drain(key);
+                }
+                if (changed) {
+                    load();
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // shutting down
+        }
+    }
+
+    private boolean drain(WatchKey key) {
+        boolean changed = false;
+        for (WatchEvent<?> event : key.pollEvents()) {
+            Object context = event.context();
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW
+                    || (context instanceof Path && file.getFileName().equals(context))) {
+                changed = true;
+            }
+        }
+        key.reset();
+        return changed;
+    }
+
+    private void load() {
+        Map<String, Object> config;
+        try {
+            config = new ConfigLoader(file.toString()).parse();
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Config reload skipped, " + file + " could not be read: " + e.getMessage());
+            return;
+        }
+        System.out.println("Configuration changed, reloading.");
+        onChange.accept(config);
+    }
+}
@@ -0,0 +1,267 @@
+package com.localserver;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+public class Connection {
+    private final SocketChannel channel;
+    private final SocketAddress remote;
+    private final Listener listener;
+    private VirtualHosts hosts;
+    private final BufferPool pool;
+    private BufferPool.Chunk in;
+    private final HttpParser parser = new HttpParser();
+    private final ArrayDeque<Exchange> exchanges = new ArrayDeque<>();
+    private Exchange stalled;
+    private final ArrayDeque<Outbound> out = new ArrayDeque<>();
+    private final ByteBuffer[] gather = new ByteBuffer[16];
+    private final long[] gatherSizes = new long[16];
+    private boolean closeAfterWrite;
+    private int requestCount;
+    private long lastActivity;
+    private long headStarted;
+    private long writeStalledSince;
+    private TimerWheel.Timeout<SelectionKey> timeout;
+    private long bytesSent;
+    private long bytesLogged;
+    private AccessLog.Completions completions;
+    private boolean closed;
+
+    public Connection(SocketChannel channel, Listener listener, BufferPool pool) {
+        this.channel = channel;
+        this.remote = channel.socket().getRemoteSocketAddress();
+        this.listener = listener;
+        this.hosts = listener.getHosts();
+        this.pool = pool;
+        this.lastActivity = System.currentTimeMillis();
+        parser.setBodyPolicy(hosts);
+    }
+
+    public SocketChannel getChannel() { return channel; }
+    public SocketAddress getRemoteAddress() { return remote; }
+
+    // The servers configured for the address this connection was accepted
+    // on, as of the request being parsed.
+    public VirtualHosts getHosts() { return hosts; }
+
+    // Picks up a reloaded configuration. Only called between requests, so
+    // the body policy and the routing of one request always agree.
+    public void refreshHosts() {
+        VirtualHosts current = listener.getHosts();
+        if (current != hosts) {
+            hosts = current;
+            parser.setBodyPolicy(current);
+        }
+    }
+
+    // Buffer is kept in write mode between reads so pipelined bytes that
+    // belong to the next request survive until they can be parsed. It is
+    // borrowed from the reactor's pool only while it holds unparsed bytes;
+    // otherwise this is the pool's empty buffer.
+    public ByteBuffer getInput() { return in != null ? in.buffer() : pool.empty(); }
+
+    // Makes room for the next read, moving to a larger buffer when full.
+    public void ensureCapacity() {
+        if (in == null) {
+            in = pool.acquire(8192);
+        } else if (!in.buffer().hasRemaining()) {
+            BufferPool.Chunk bigger = pool.acquire(in.buffer().capacity() * 2);
+            in.buffer().flip();
+            bigger.buffer().put(in.buffer());
+            pool.release(in);
+            in = bigger;
+        }
+    }
+
+    // Hands the input buffer back once everything in it has been parsed.
+    public void trimInput() {
+        if (in != null && in.buffer().position() == 0) {
+            pool.release(in);
+            in = null;
+        }
+    }
+
+    public HttpParser getParser() { return parser; }
+
+    public void addExchange(Exchange exchange) { exchanges.add(exchange); }
+
+    // Exchanges whose responses have not been queued for writing yet,
+    // including ones still being handled by a worker.
+    public int getPendingExchanges() { return exchanges.size(); }
+
+    // Removes and returns the oldest exchange if its response is ready.
+    public Exchange pollCompleted() {
+        Exchange head = exchanges.peek();
+        if (head == null || head.getResponse() == null) return null;
+        return exchanges.poll();
+    }
+
+    // An exchange that could not be dispatched because the global in-flight
+    // limit was reached; it is retried before anything else is parsed.
+    public Exchange getStalled() { return stalled; }
+    public void setStalled(Exchange exchange) { stalled = exchange; }
+
+    public void enqueue(ByteBuffer data) {
+        enqueue(Outbound.of(data));
+    }
+
+    public void enqueue(Outbound data) {
+        out.add(data);
+    }
+
+    // Queues a pooled buffer (in read mode), which goes back to the pool
+    // once written or dropped.
+    public void enqueue(BufferPool.Chunk chunk) {
+        ByteBuffer buffer = chunk.buffer();
+        out.add(new Outbound() {
+            private boolean closed;
+
+            @Override
+            public long writeTo(SocketChannel channel) throws IOException {
+                return channel.write(buffer);
+            }
+
+            @Override
+            public long remaining() {
+                return closed ? 0 : buffer.remaining();
+            }
+
+            @Override
+            public ByteBuffer buffer() {
+                return closed ? null : buffer;
+            }
+
+            @Override
+            public void close() {
+                if (closed) return;
+                closed = true;
+                pool.release(chunk);
+            }
+        });
+    }
+
+    // Writes queued data until the socket stops accepting it. Returns true
+    // once the queue is empty; false means the caller should wait for OP_WRITE.
+    // Consecutive in-memory pieces, such as a head and its body or several
+    // pipelined responses, are sent with one gathering write.
+    public boolean flush() throws IOException {
+        while (!out.isEmpty()) {
+            int count = 0;
+            for (Outbound piece : out) {
+                ByteBuffer buffer = piece.buffer();
+                if (buffer == null || count == gather.length) break;
+                gather[count++] = buffer;
+            }
+            if (count > 1) {
+                for (int i = 0; i < count; i++) {
+                    gatherSizes[i] = gather[i].remaining();
+                }
+                channel.write(gather, 0, count);
+                // Bytes are counted piece by piece, so a piece that is closed
+                // sees exactly what was sent up to and including it.
+                boolean partial = false;
+                for (int i = 0; i < count && !partial; i++) {
+                    bytesSent += gatherSizes[i] - gather[i].remaining();
+                    partial = gather[i].hasRemaining();
+                    if (!partial) out.poll().close();
+                }
+                Arrays.fill(gather, 0, count, null);
+                if (partial) return false;
+                continue;
+            }
+            gather[0] = null;
+            Outbound head = out.peek();
+            bytesSent += head.writeTo(channel);
+            if (head.remaining() > 0) {
+                return false;
+            }
+            out.poll().close();
+        }
+        return true;
+    }
+
+    // Frees everything still queued, including responses that workers finish
+    // after the socket is gone. Returns true only on the first call.
+    public boolean release() {
+        parser.abort();
+        if (in != null) {
+            pool.release(in);
+            in = null;
+        }
+        Outbound pending;
+        while ((pending = out.poll()) != null) {
+            pending.close();
+        }
+        Exchange done;
+        while ((done = pollCompleted()) != null) {
+            done.getResponse().discard();
+        }
+        boolean first = !closed;
+        closed = true;
+        return first;
+    }
+
+    // Summed on demand because a streamed body grows while it is queued.
+    public long getQueuedBytes() {
+        long total = 0;
+        for (Outbound pending : out) {
+            total += pending.remaining();
+        }
+        return total;
+    }
+
+    // True when the next piece to write is a stream whose producer has not
+    // supplied anything yet.
+    public boolean isAwaitingData() {
+        Outbound head = out.peek();
+        return head != null && head.awaitingData();
+    }
+
+    public long getBytesSent() { return bytesSent; }
+
+    // Bytes sent since the previous call, which the access log charges to
+    // the response that has just been written.
+    public long takeBytesSentSinceLog() {
+        long bytes = bytesSent - bytesLogged;
+        bytesLogged = bytesSent;
+        return bytes;
+    }
+
+    // Created on the first logged response and reused for the rest.
+    public AccessLog.Completions getCompletions(AccessLog log) {
+        if (completions == null) {
+            completions = log.completions(this);
+        }
+        return completions;
+    }
+
+    public boolean isCloseAfterWrite() { return closeAfterWrite; }
+    public void setCloseAfterWrite() { closeAfterWrite = true; }
+
+    public int getRequestCount() { return requestCount; }
+    public int incrementRequestCount() { return ++requestCount; }
+
+    public long getLastActivity() { return lastActivity; }
+    public void touch(long now) { lastActivity = now; }
+
+    // When the first byte of a head that is still incomplete arrived, or 0.
+    public long getHeadStarted() { return headStarted; }
+    public void setHeadStarted(long time) { headStarted = time; }
+
+    // When the connection last wrote something while more output was
+    // waiting for the socket, or 0 when nothing is waiting.
+    public long getWriteStalledSince() { return writeStalledSince; }
+    public void setWriteStalledSince(long time) { writeStalledSince = time; }
+
+    public boolean hasQueuedOutput() { return !out.isEmpty(); }
+
+    // The reactor's timer for this connection; it fires at or before the
+    // connection's current deadline.
+    public TimerWheel.Timeout<SelectionKey> getTimeout() { return timeout; }
+    public void setTimeout(TimerWheel.Timeout<SelectionKey> timeout) { this.timeout = timeout; }
+}
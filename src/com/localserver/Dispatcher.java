@@ -0,0 +1,99 @@
+package com.localserver;
+
+import java.nio.channels.SelectionKey;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+
+// Runs Router.handle off the selector threads. Reactors hand over fully
+// parsed requests and get the finished response back through
+// Reactor.complete, so disk reads and CGI processes never stall a selector.
+public class Dispatcher {
+    private final ExecutorService executor;
+    private final Semaphore inFlight;
+    private final int maxInFlightPerConnection;
+    private final Queue<Reactor> waiting = new ConcurrentLinkedQueue<>();
+
+    public Dispatcher(Map<String, Object> config) {
+        this.inFlight = new Semaphore(ConfigLoader.getInt(config, "max_inflight", 1024));
+        this.maxInFlightPerConnection = ConfigLoader.getInt(config, "max_inflight_per_connection", 8);
+        this.executor = createExecutor(config);
+    }
+
+    private static ExecutorService createExecutor(Map<String, Object> config) {
+        String kind = (String) config.getOrDefault("worker_executor", "virtual");
+        if (kind.equals("virtual")) {
+            try {
+                // Looked up reflectively so the server still runs on JDKs without Loom.
+                return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            } catch (ReflectiveOperationException e) {
+                System.err.println("Virtual threads unavailable, using a fixed worker pool.");
+            }
+        }
+        int threads = ConfigLoader.getInt(config, "worker_threads", Runtime.getRuntime().availableProcessors() * 4);
+        return Executors.newFixedThreadPool(threads, r -> {
+            Thread thread = new Thread(r, "worker");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public int getMaxInFlightPerConnection() { return maxInFlightPerConnection; }
+
+    // Takes a global in-flight slot. When none is left the reactor is put on
+    // the waiting list and woken up as soon as another request completes.
+    public boolean tryAcquire(Reactor reactor) {
+        if (inFlight.tryAcquire()) return true;
+        waiting.add(reactor);
+        // A slot may have been released between the failed tryAcquire and add.
+        if (inFlight.availablePermits() > 0) {
+            wakeWaiting();
+        }
+        return false;
+    }
+
+    public void dispatch(Router router, Exchange exchange, Reactor reactor, SelectionKey key) {
+        // Keeps a router that a config reload retires open until this
+        // request is done with it.
+        router.enter();
+        executor.execute(() -> {
+            try {
+                HttpResponse response;
+                try {
+                    response = router.handle(exchange.getRequest());
+                } catch (Throwable e) {
+                    // Errors too: the exchange must still get a response or the
+                    // connection would wait for it until it times out.
+                    System.err.println("Error handling " + exchange.getRequest() + ": " + e);
+                    response = router.error(500, "Internal Server Error");
+                }
+                if (response.getStream() != null && "HTTP/1.0".equals(exchange.getRequest().getVersion())) {
+                    // HTTP/1.0 has no chunked encoding; the body ends when the connection does.
+                    response.removeHeader("Transfer-Encoding");
+                    response.getStream().setChunked(false);
+                }
+                exchange.complete(response);
+                reactor.complete(key);
+                // A streamed body is produced here, after the head went out; the
+                // request holds its in-flight slot until the producer is done.
+                if (response.getStream() != null) {
+                    response.getStream().run();
+                }
+            } finally {
+                router.exit();
+                inFlight.release();
+                wakeWaiting();
+            }
+        });
+    }
+
+    private void wakeWaiting() {
+        Reactor reactor = waiting.poll();
+        if (reactor != null) {
+            reactor.wakeup();
+        }
+    }
+}
@@ -0,0 +1,28 @@
+package com.localserver;
+
+// One request/response pair on a connection. The reactor creates it when
+// the request is parsed; a worker thread fills in the response. Exchanges are
+// queued on the Connection so pipelined responses go out in request order.
+// The router is the virtual host picked for the request's Host header.
+public class Exchange {
+    private final HttpRequest request;
+    private final boolean keepAlive;
+    private final Router router;
+    private final long started = System.nanoTime();
+    private volatile HttpResponse response;
+
+    public Exchange(HttpRequest request, boolean keepAlive, Router router) {
+        this.request = request;
+        this.keepAlive = keepAlive;
+        this.router = router;
+    }
+
+    public HttpRequest getRequest() { return request; }
+    public boolean isKeepAlive() { return keepAlive; }
+    public Router getRouter() { return router; }
+    // System.nanoTime() when the request was parsed.
+    public long getStarted() { return started; }
+
+    public HttpResponse getResponse() { return response; }
+    public void complete(HttpResponse response) { this.response = response; }
+}
@@ -0,0 +1,63 @@
+package com.localserver;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+
+// A response body that is a slice of an open file. It is sent with
+// FileChannel.transferTo, which maps to sendfile on Linux, so the bytes go
+// from the page cache to the socket without passing through the heap.
+public class FileRegion implements Outbound {
+    private final FileChannel file;
+    private long position;
+    private long remaining;
+    private final boolean closeFile;
+
+    public FileRegion(FileChannel file, long position, long count) {
+        this(file, position, count, true);
+    }
+
+    // Several regions may share one channel (multipart ranges); only the one
+    // created with closeFile set closes it.
+    public FileRegion(FileChannel file, long position, long count, boolean closeFile) {
+        this.file = file;
+        this.position = position;
+        this.remaining = count;
+        this.closeFile = closeFile;
+    }
+
+    public long getCount() { return remaining; }
+
+    @Override
+    public long writeTo(SocketChannel channel) throws IOException {
+        long total = 0;
+        while (remaining > 0) {
+            long sent = file.transferTo(position, remaining, channel);
+            if (sent <= 0) {
+                if (position >= file.size()) {
+                    throw new IOException("File shrank while being sent");
+                }
+                break;
+            }
+            position += sent;
+            remaining -= sent;
+            total += sent;
+        }
+        return total;
+    }
+
+    @Override
+    public long remaining() {
+        return remaining;
+    }
+
+    @Override
+    public void close() {
+        if (!closeFile) return;
+        try {
+            file.close();
+        } catch (IOException e) {
+            // ignore
+        }
+    }
+}
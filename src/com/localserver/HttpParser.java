@@ -0,0 +1,355 @@
+package com.localserver;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+// Resumable request parser. One instance lives on each Connection and is fed
+// the connection's read buffer after every OP_READ; it keeps enough state to
+// pick up where it stopped when a request spans several TCP segments.
+public class HttpParser {
+    public static final int MAX_HEAD_SIZE = 16384;
+    private static final int MAX_CHUNK_LINE = 1024;
+
+    private enum State { HEAD, BODY, CHUNK_SIZE, CHUNK_DATA, CHUNK_END, TRAILER }
+
+    private State state = State.HEAD;
+    private int scanned;          // head bytes already searched for the blank line
+    private HttpRequest request;  // request whose body is being read
+    private long remaining;       // bytes left in the body or the current chunk
+    private long received;        // body bytes read so far
+    private long maxBodySize;
+    private BodySink body;
+    private boolean expectContinue;
+    private BodyPolicy policy = DEFAULT_POLICY;
+
+    // Decides, once the head is known, how large the body may be and where
+    // it goes. Router implements this to enforce client_max_body_size and to
+    // stream uploads to disk.
+    public interface BodyPolicy {
+        long maxBodySize(HttpRequest request);
+
+        // contentLength is -1 for chunked bodies. A ParseException rejects
+        // the request with its status.
+        BodySink open(HttpRequest request, long contentLength) throws IOException, ParseException;
+    }
+
+    private static final BodyPolicy DEFAULT_POLICY = new BodyPolicy() {
+        @Override
+        public long maxBodySize(HttpRequest request) {
+            return Long.MAX_VALUE;
+        }
+
+        @Override
+        public BodySink open(HttpRequest request, long contentLength) {
+            return BodySink.memory(contentLength);
+        }
+    };
+
+    public static class ParseException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        private final int status;
+        private final String reason;
+
+        public ParseException(int status, String reason) {
+            super(status + " " + reason);
+            this.status = status;
+            this.reason = reason;
+        }
+
+        public int getStatus() { return status; }
+        public String getReason() { return reason; }
+    }
+
+    public void setBodyPolicy(BodyPolicy policy) {
+        this.policy = policy;
+    }
+
+    // True once after a head with "Expect: 100-continue" was accepted; the
+    // caller may then send an interim 100 response. Until taken the flag
+    // lasts as long as the body is still being received, so a caller that
+    // has earlier responses to send first can wait and take it later.
+    public boolean takeExpectContinue() {
+        boolean expect = expectContinue;
+        expectContinue = false;
+        return expect;
+    }
+
+    // True between the end of a head and the end of its body.
+    public boolean isReadingBody() {
+        return state != State.HEAD;
+    }
+
+    // Discards a body that is being received, e.g. when the connection closes.
+    public void abort() {
+        if (body != null) {
+            body.abort();
+            body = null;
+        }
+        request = null;
+        expectContinue = false;
+        state = State.HEAD;
+    }
+
+    // Consumes bytes from buf (in read mode) and returns a request once one is
+    // complete, or null when more input is needed. An incomplete head is left
+    // in the buffer untouched; body bytes are consumed as they arrive.
+    public HttpRequest parse(ByteBuffer buf) throws ParseException {
+        while (true) {
+            switch (state) {
+                case HEAD:
+                    if (!parseHead(buf)) return null;
+                    break;
+                case BODY: {
+                    int n = (int) Math.min(remaining, buf.remaining());
+                    copyBody(buf, n);
+                    remaining -= n;
+                    if (remaining > 0) return null;
+                    return finish();
+                }
+                case CHUNK_SIZE: {
+                    int lineEnd = findLineEnd(buf, MAX_CHUNK_LINE);
+                    if (lineEnd == -1) return null;
+                    remaining = parseChunkSize(buf, lineEnd);
+                    buf.position(lineEnd + 1);
+                    if (remaining > maxBodySize - received) {
+                        abort();
+                        throw new ParseException(413, "Payload Too Large");
+                    }
+                    state = remaining == 0 ? State.TRAILER : State.CHUNK_DATA;
+                    break;
+                }
+                case CHUNK_DATA: {
+                    int n = (int) Math.min(remaining, buf.remaining());
+                    copyBody(buf, n);
+                    remaining -= n;
+                    if (remaining > 0) return null;
+                    state = State.CHUNK_END;
+                    break;
+                }
+                case CHUNK_END: {
+                    int lineEnd = findLineEnd(buf, 2);
+                    if (lineEnd == -1) return null;
+                    buf.position(lineEnd + 1);
+                    state = State.CHUNK_SIZE;
+                    break;
+                }
+                case TRAILER: {
+                    // Trailer fields are read and dropped; an empty line ends the message.
+                    int lineEnd = findLineEnd(buf, MAX_CHUNK_LINE);
+                    if (lineEnd == -1) return null;
+                    boolean empty = lineEnd == buf.position()
+                            || (lineEnd == buf.position() + 1 && buf.get(buf.position()) == '\r');
+                    buf.position(lineEnd + 1);
+                    if (empty) return finish();
+                    break;
+                }
+            }
+        }
+    }
+
+    private boolean parseHead(ByteBuffer buf) throws ParseException {
+        int start = buf.position();
+        int limit = buf.limit();
+
+        // Skip stray CRLFs between pipelined requests (RFC 7230 3.5).
+        while (scanned == 0 && start < limit && (buf.get(start) == '\r' || buf.get(start) == '\n')) {
+            start++;
+            buf.position(start);
+        }
+
+        int end = -1;
+        for (int i = Math.max(start, start + scanned - 3); i < limit; i++) {
+            if (buf.get(i) != '\n') continue;
+            if (i + 1 < limit && buf.get(i + 1) == '\n') {
+                end = i + 2;
+                break;
+            }
+            if (i + 2 < limit && buf.get(i + 1) == '\r' && buf.get(i + 2) == '\n') {
+                end = i + 3;
+                break;
+            }
+        }
+        if (end == -1) {
+            scanned = limit - start;
+            if (scanned > MAX_HEAD_SIZE) {
+                throw new ParseException(431, "Request Header Fields Too Large");
+            }
+            return false;
+        }
+        if (end - start > MAX_HEAD_SIZE) {
+            throw new ParseException(431, "Request Header Fields Too Large");
+        }
+
+        byte[] head = new byte[end - start];
+        buf.get(head);
+        scanned = 0;
+        request = buildRequest(head);
+
+        String transferEncoding = request.getHeader("Transfer-Encoding");
+        String contentLength = request.getHeader("Content-Length");
+        received = 0;
+        if (transferEncoding != null) {
+            if (!transferEncoding.trim().equalsIgnoreCase("chunked")) {
+                throw new ParseException(501, "Not Implemented");
+            }
+            maxBodySize = policy.maxBodySize(request);
+            openBody(-1);
+            state = State.CHUNK_SIZE;
+        } else if (contentLength != null) {
+            try {
+                remaining = Long.parseLong(contentLength.trim());
+            } catch (NumberFormatException e) {
+                throw new ParseException(400, "Bad Request");
+            }
+            if (remaining < 0) {
+                throw new ParseException(400, "Bad Request");
+            }
+            // Rejected before a single body byte is read.
+            maxBodySize = policy.maxBodySize(request);
+            if (remaining > maxBodySize) {
+                throw new ParseException(413, "Payload Too Large");
+            }
+            openBody(remaining);
+            state = State.BODY;
+        } else {
+            remaining = 0;
+            body = null;
+            state = State.BODY;
+        }
+        return true;
+    }
+
+    private void openBody(long contentLength) throws ParseException {
+        try {
+            body = policy.open(request, contentLength);
+        } catch (IOException e) {
+            throw new ParseException(500, "Internal Server Error");
+        }
+        String expect = request.getHeader("Expect");
+        expectContinue = expect != null && expect.equalsIgnoreCase("100-continue");
+    }
+
+    // Splits the head into the request line and header offsets without
+    // decoding anything; HttpRequest decodes names and values on demand.
+    private HttpRequest buildRequest(byte[] head) throws ParseException {
+        int lineEnd = indexOf(head, 0, (byte) '\n');
+        int requestLineEnd = trimEnd(head, 0, lineEnd);
+        int sp1 = indexOf(head, 0, requestLineEnd, (byte) ' ');
+        int sp2 = sp1 == -1 ? -1 : indexOf(head, sp1 + 1, requestLineEnd, (byte) ' ');
+        if (sp1 <= 0 || sp2 == -1 || sp2 == sp1 + 1) {
+            throw new ParseException(400, "Bad Request");
+        }
+
+        int[] offsets = new int[32];
+        int count = 0;
+        int pos = lineEnd + 1;
+        while (pos < head.length) {
+            int next = indexOf(head, pos, (byte) '\n');
+            if (next == -1) next = head.length;
+            int end = trimEnd(head, pos, next);
+            if (end > pos) {
+                int colon = indexOf(head, pos, end, (byte) ':');
+                if (colon <= pos) {
+                    throw new ParseException(400, "Bad Request");
+                }
+                int valueStart = colon + 1;
+                while (valueStart < end && (head[valueStart] == ' ' || head[valueStart] == '\t')) valueStart++;
+                int valueEnd = end;
+                while (valueEnd > valueStart && (head[valueEnd - 1] == ' ' || head[valueEnd - 1] == '\t')) valueEnd--;
+                if (count * 4 + 4 > offsets.length) {
+                    offsets = Arrays.copyOf(offsets, offsets.length * 2);
+                }
+                offsets[count * 4] = pos;
+                offsets[count * 4 + 1] = trimEnd(head, pos, colon);
+                offsets[count * 4 + 2] = valueStart;
+                offsets[count * 4 + 3] = valueEnd;
+                count++;
+            }
+            pos = next + 1;
+        }
+        return new HttpRequest(head, sp1, sp2, requestLineEnd, offsets, count);
+    }
+
+    private void copyBody(ByteBuffer buf, int n) throws ParseException {
+        if (n == 0) return;
+        ByteBuffer slice = buf.duplicate();
+        slice.limit(buf.position() + n);
+        buf.position(buf.position() + n);
+        received += n;
+        try {
+            body.write(slice);
+        } catch (IOException e) {
+            abort();
+            throw new ParseException(500, "Internal Server Error");
+        }
+    }
+
+    private HttpRequest finish() throws ParseException {
+        HttpRequest done = request;
+        BodySink sink = body;
+        request = null;
+        body = null;
+        expectContinue = false;
+        state = State.HEAD;
+        if (sink != null) {
+            try {
+                sink.finish(done);
+            } catch (IOException e) {
+                throw new ParseException(500, "Internal Server Error");
+            }
+        }
+        return done;
+    }
+
+    private long parseChunkSize(ByteBuffer buf, int lineEnd) throws ParseException {
+        long size = 0;
+        int digits = 0;
+        for (int i = buf.position(); i < lineEnd; i++) {
+            int c = buf.get(i);
+            int digit = Character.digit(c, 16);
+            if (digit == -1) {
+                if (c == ';' || c == '\r' || c == ' ' || c == '\t') break;
+                throw new ParseException(400, "Bad Request");
+            }
+            if (++digits > 15) {
+                throw new ParseException(413, "Payload Too Large");
+            }
+            size = size * 16 + digit;
+        }
+        if (digits == 0) {
+            throw new ParseException(400, "Bad Request");
+        }
+        return size;
+    }
+
+    // Index of the next '\n' at or after the buffer position, or -1. Fails once
+    // more than maxLength bytes have been seen without one.
+    private static int findLineEnd(ByteBuffer buf, int maxLength) throws ParseException {
+        int limit = buf.limit();
+        for (int i = buf.position(); i < limit; i++) {
+            if (buf.get(i) == '\n') return i;
+        }
+        if (buf.remaining() > maxLength) {
+            throw new ParseException(400, "Bad Request");
+        }
+        return -1;
+    }
+
+    private static int indexOf(byte[] data, int from, byte b) {
+        return indexOf(data, from, data.length, b);
+    }
+
+    private static int indexOf(byte[] data, int from, int to, byte b) {
+        for (int i = from; i < to; i++) {
+            if (data[i] == b) return i;
+        }
+        return -1;
+    }
+
+    private static int trimEnd(byte[] data, int from, int to) {
+        while (to > from && (data[to - 1] == '\r' || data[to - 1] == ' ' || data[to - 1] == '\t')) to--;
+        return to;
+    }
+}
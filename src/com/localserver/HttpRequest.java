@@ -1,110 +1,167 @@
-package com.localserver;
-
-import java.util.HashMap;
-import java.util.Map;
-
-public class HttpRequest {
-    private String method;
-    private String path;
-    private String version;
-    private Map<String, String> headers = new HashMap<>();
-    private String body;
-    private Map<String, String> queryParams = new HashMap<>();
-    private Map<String, String> cookies = new HashMap<>();
-
-    public HttpRequest(String rawRequest) {
-        parse(rawRequest);
-    }
-
-    private void parse(String rawRequest) {
-        // Split by double CRLF for headers vs body
-        int splitIndex = rawRequest.indexOf("\r\n\r\n");
-        if (splitIndex == -1) {
-             // Fallback to \n\n
-             splitIndex = rawRequest.indexOf("\n\n");
-        }
-        
-        String headerPart;
-        if (splitIndex != -1) {
-            headerPart = rawRequest.substring(0, splitIndex);
-            // +4 for \r\n\r\n, or +2 for \n\n. Let's just take substring after match
-            this.body = rawRequest.substring(splitIndex + (rawRequest.charAt(splitIndex) == '\r' ? 4 : 2));
-        } else {
-            headerPart = rawRequest;
-            this.body = "";
-        }
-
-        String[] lines = headerPart.split("\n"); // simple split by newline
-        if (lines.length > 0) {
-            String line0 = lines[0].trim();
-            String[] requestLine = line0.split(" ");
-            if (requestLine.length >= 3) {
-                this.method = requestLine[0];
-                this.path = requestLine[1];
-                this.version = requestLine[2];
-                parseQueryString();
-            }
-        }
-
-        for (int i = 1; i < lines.length; i++) {
-            String line = lines[i].trim();
-            if (line.isEmpty()) continue;
-            int colonIndex = line.indexOf(":");
-            if (colonIndex > 0) {
-                String key = line.substring(0, colonIndex).trim();
-                String value = line.substring(colonIndex + 1).trim();
-                headers.put(key, value);
-                
-                if (key.equalsIgnoreCase("Cookie")) {
-                    parseCookies(value);
-                }
-            }
-        }
-    }
-
-    private void parseCookies(String cookieHeader) {
-        String[] parts = cookieHeader.split(";");
-        for (String part : parts) {
-            String[] kv = part.trim().split("=", 2);
-            if (kv.length == 2) {
-                cookies.put(kv[0].trim(), kv[1].trim());
-            }
-        }
-    }
-
-    private void parseQueryString() {
-        if (path.contains("?")) {
-            String[] parts = path.split("\\?", 2);
-            this.path = parts[0];
-            String queryString = parts[1];
-            String[] pairs = queryString.split("&");
-            for (String pair : pairs) {
-                String[] kv = pair.split("=", 2);
-                if (kv.length == 2) {
-                    queryParams.put(kv[0], kv[1]);
-                } else if (kv.length == 1) {
-                    queryParams.put(kv[0], "");
-                }
-            }
-        }
-    }
-
-    public String getMethod() { return method; }
-    public String getPath() { return path; }
-    public String getVersion() { return version; }
-    public String getHeader(String key) { return headers.get(key); }
-    public String getBody() { return body; }
-    public Map<String, String> getQueryParams() { return queryParams; }
-    public String getQueryString() {
-        if (path != null && path.contains("?")) {
-            return path.split("\\?", 2)[1];
-        }
-        return null;
-    }
-    public String getCookie(String key) { return cookies.get(key); }
-
-    @Override
-    public String toString() {
-        return method + " " + path + " " + version;
-    }
-}
+package com.localserver;
+
+import java.net.SocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+
+// A parsed request. The head is kept as the raw bytes handed over by
+// HttpParser together with header offsets; names and values are only
+// decoded when somebody asks for them.
+public class HttpRequest {
+    private static final byte[] EMPTY = new byte[0];
+
+    private final byte[] head;
+    private final int[] headerOffsets; // nameStart, nameEnd, valueStart, valueEnd per header
+    private final int headerCount;
+    private final String method;
+    private final String path;
+    private final String queryString;
+    private final String version;
+    private byte[] body = EMPTY;
+    private Path uploadedFile;
+    private SocketAddress remoteAddress;
+    private Map<String, String> queryParams;
+    private Map<String, String> cookies;
+
+    HttpRequest(byte[] head, int methodEnd, int targetEnd, int lineEnd, int[] headerOffsets, int headerCount) {
+        this.head = head;
+        this.headerOffsets = headerOffsets;
+        this.headerCount = headerCount;
+        this.method = new String(head, 0, methodEnd, StandardCharsets.ISO_8859_1);
+        String target = new String(head, methodEnd + 1, targetEnd - methodEnd - 1, StandardCharsets.ISO_8859_1);
+        int question = target.indexOf('?');
+        if (question != -1) {
+            this.path = target.substring(0, question);
+            this.queryString = target.substring(question + 1);
+        } else {
+            this.path = target;
+            this.queryString = null;
+        }
+        this.version = new String(head, targetEnd + 1, lineEnd - targetEnd - 1, StandardCharsets.ISO_8859_1);
+    }
+
+    void setBody(byte[] body) {
+        this.body = body;
+    }
+
+    void setUploadedFile(Path file) {
+        this.uploadedFile = file;
+    }
+
+    void setRemoteAddress(SocketAddress remoteAddress) {
+        this.remoteAddress = remoteAddress;
+    }
+
+    private void parseCookies(String cookieHeader) {
+        String[] parts = cookieHeader.split(";");
+        for (String part : parts) {
+            String[] kv = part.trim().split("=", 2);
+            if (kv.length == 2) {
+                cookies.put(kv[0].trim(), kv[1].trim());
+            }
+        }
+    }
+
+    private void parseQueryString() {
+        if (queryString != null) {
+            String[] pairs = queryString.split("&");
+            for (String pair : pairs) {
+                String[] kv = pair.split("=", 2);
+                if (kv.length == 2) {
+                    queryParams.put(kv[0], kv[1]);
+                } else if (kv.length == 1) {
+                    queryParams.put(kv[0], "");
+                }
+            }
+        }
+    }
+
+    private int findHeader(String name) {
+        int length = name.length();
+        for (int i = 0; i < headerCount; i++) {
+            int start = headerOffsets[i * 4];
+            if (headerOffsets[i * 4 + 1] - start != length) continue;
+            boolean match = true;
+            for (int j = 0; j < length; j++) {
+                int a = head[start + j];
+                int b = name.charAt(j);
+                if (a != b && (a | 0x20) != (b | 0x20)) {
+                    match = false;
+                    break;
+                }
+            }
+            if (match) return i;
+        }
+        return -1;
+    }
+
+    public String getMethod() { return method; }
+    public String getPath() { return path; }
+    public String getVersion() { return version; }
+
+    // Header names are matched case-insensitively, as RFC 7230 requires.
+    public String getHeader(String key) {
+        int i = findHeader(key);
+        return i != -1 ? getHeaderValue(i) : null;
+    }
+
+    // Headers by position, in the order they were received.
+    public int getHeaderCount() { return headerCount; }
+
+    public String getHeaderName(int i) {
+        int start = headerOffsets[i * 4];
+        return new String(head, start, headerOffsets[i * 4 + 1] - start, StandardCharsets.ISO_8859_1);
+    }
+
+    public String getHeaderValue(int i) {
+        int start = headerOffsets[i * 4 + 2];
+        return new String(head, start, headerOffsets[i * 4 + 3] - start, StandardCharsets.ISO_8859_1);
+    }
+
+    public String getBody() { return new String(body, StandardCharsets.UTF_8); }
+    public byte[] getBodyBytes() { return body; }
+
+    // Where an upload body was streamed to, if this request was routed to an
+    // upload location; the body is not kept in memory in that case.
+    public Path getUploadedFile() { return uploadedFile; }
+
+    // The peer the request was read from; null when it did not come in
+    // over a connection.
+    public SocketAddress getRemoteAddress() { return remoteAddress; }
+
+    public Map<String, String> getQueryParams() {
+        if (queryParams == null) {
+            queryParams = new HashMap<>();
+            parseQueryString();
+        }
+        return queryParams;
+    }
+
+    public String getQueryString() { return queryString; }
+
+    public String getCookie(String key) {
+        if (cookies == null) {
+            cookies = new HashMap<>();
+            String cookieHeader = getHeader("Cookie");
+            if (cookieHeader != null) {
+                parseCookies(cookieHeader);
+            }
+        }
+        return cookies.get(key);
+    }
+
+    public boolean isKeepAlive() {
+        String connection = getHeader("Connection");
+        if ("HTTP/1.0".equals(version)) {
+            return connection != null && connection.equalsIgnoreCase("keep-alive");
+        }
+        return connection == null || !connection.equalsIgnoreCase("close");
+    }
+
+    @Override
+    public String toString() {
+        return method + " " + path + " " + version;
+    }
+}
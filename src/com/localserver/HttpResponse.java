@@ -1,64 +1,160 @@
-package com.localserver;
-
-import java.nio.charset.StandardCharsets;
-import java.util.HashMap;
-import java.util.Map;
-
-public class HttpResponse {
-    private int statusCode = 200;
-    private String statusMessage = "OK";
-    private Map<String, String> headers = new HashMap<>();
-    private byte[] body = new byte[0];
-
-    public HttpResponse() {
-        headers.put("Server", "JavaNioServer/1.0");
-        headers.put("Connection", "close");
-    }
-
-    public void setStatus(int code, String message) {
-        this.statusCode = code;
-        this.statusMessage = message;
-    }
-
-    public void setHeader(String key, String value) {
-        headers.put(key, value);
-    }
-
-    public void setBody(String body) {
-        this.body = body.getBytes(StandardCharsets.UTF_8);
-        setHeader("Content-Type", "text/plain; charset=utf-8");
-        setHeader("Content-Length", String.valueOf(this.body.length));
-    }
-    
-    public void setBody(String body, String contentType) {
-        this.body = body.getBytes(StandardCharsets.UTF_8);
-        setHeader("Content-Type", contentType);
-        setHeader("Content-Length", String.valueOf(this.body.length));
-    }
-
-    public void setBody(byte[] body, String contentType) {
-        this.body = body;
-        setHeader("Content-Type", contentType);
-        setHeader("Content-Length", String.valueOf(this.body.length));
-    }
-
-    public void setCookie(String key, String value) {
-        setHeader("Set-Cookie", key + "=" + value + "; Path=/; HttpOnly");
-    }
-
-    public byte[] toBytes() {
-        StringBuilder sb = new StringBuilder();
-        sb.append("HTTP/1.1 ").append(statusCode).append(" ").append(statusMessage).append("\r\n");
-        for (Map.Entry<String, String> entry : headers.entrySet()) {
-            sb.append(entry.getKey()).append(": ").append(entry.getValue()).append("\r\n");
-        }
-        sb.append("\r\n");
-        
-        byte[] headerBytes = sb.toString().getBytes(StandardCharsets.UTF_8);
-        byte[] response = new byte[headerBytes.length + body.length];
-        System.arraycopy(headerBytes, 0, response, 0, headerBytes.length);
-        System.arraycopy(body, 0, response, headerBytes.length, body.length);
-        
-        return response;
-    }
-}
+package com.localserver;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Server, Content-Type, Content-Length and Connection are kept in fields so
+// ResponseEncoder can write them from pre-encoded bytes; any other header
+// goes into a map that is only created when needed.
+public class HttpResponse {
+    private static final ByteBuffer CONTINUE = ByteBuffer.wrap(
+            "HTTP/1.1 100 Continue\r\n\r\n".getBytes(StandardCharsets.US_ASCII)).asReadOnlyBuffer();
+
+    private int statusCode = 200;
+    private String statusMessage = "OK";
+    private String server = ResponseEncoder.DEFAULT_SERVER;
+    private String contentType;
+    private long contentLength = -1;
+    private Boolean keepAlive;
+    private Map<String, String> headers;
+    private byte[] body = new byte[0];
+    private List<Outbound> bodyParts = Collections.emptyList();
+    private StaticCache.Entry cached;
+    private ResponseStream stream;
+
+    public int getStatusCode() { return statusCode; }
+    public String getStatusMessage() { return statusMessage; }
+
+    public void setKeepAlive(boolean keepAlive) {
+        this.keepAlive = keepAlive;
+    }
+
+    public void setStatus(int code, String message) {
+        this.statusCode = code;
+        this.statusMessage = message;
+    }
+
+    public void setHeader(String key, String value) {
+        if (key.equalsIgnoreCase("Content-Type")) {
+            contentType = value;
+        } else if (key.equalsIgnoreCase("Content-Length")) {
+            contentLength = value != null ? Long.parseLong(value.trim()) : -1;
+        } else if (key.equalsIgnoreCase("Server")) {
+            server = value;
+        } else if (key.equalsIgnoreCase("Connection")) {
+            keepAlive = value != null ? !value.equalsIgnoreCase("close") : null;
+        } else if (value == null) {
+            removeHeader(key);
+        } else {
+            if (headers == null) headers = new LinkedHashMap<>();
+            headers.put(key, value);
+        }
+    }
+
+    public void removeHeader(String key) {
+        if (key.equalsIgnoreCase("Content-Type")
+                || key.equalsIgnoreCase("Content-Length")
+                || key.equalsIgnoreCase("Server")
+                || key.equalsIgnoreCase("Connection")) {
+            setHeader(key, null);
+        } else if (headers != null) {
+            headers.remove(key);
+        }
+    }
+
+    public String getHeader(String key) {
+        if (key.equalsIgnoreCase("Content-Type")) return contentType;
+        if (key.equalsIgnoreCase("Content-Length")) return contentLength >= 0 ? String.valueOf(contentLength) : null;
+        if (key.equalsIgnoreCase("Server")) return server;
+        if (key.equalsIgnoreCase("Connection")) return keepAlive == null ? null : keepAlive ? "keep-alive" : "close";
+        return headers != null ? headers.get(key) : null;
+    }
+
+    String getServer() { return server; }
+    String getContentType() { return contentType; }
+    long getContentLength() { return contentLength; }
+    Boolean getKeepAlive() { return keepAlive; }
+    Map<String, String> getExtraHeaders() { return headers; }
+
+    public void setBody(String body) {
+        this.body = body.getBytes(StandardCharsets.UTF_8);
+        this.contentType = "text/plain; charset=utf-8";
+        this.contentLength = this.body.length;
+    }
+    
+    public void setBody(String body, String contentType) {
+        this.body = body.getBytes(StandardCharsets.UTF_8);
+        this.contentType = contentType;
+        this.contentLength = this.body.length;
+    }
+
+    public void setBody(byte[] body, String contentType) {
+        this.body = body;
+        this.contentType = contentType;
+        this.contentLength = body.length;
+    }
+
+    // The file is streamed to the socket by the reactor; see FileRegion.
+    public void setBody(FileRegion region, String contentType) {
+        setBody(Collections.singletonList(region), region.getCount(), contentType);
+    }
+
+    // A body assembled from several pieces, written one after another.
+    public void setBody(List<Outbound> parts, long length, String contentType) {
+        this.body = new byte[0];
+        this.bodyParts = parts;
+        this.contentType = contentType;
+        this.contentLength = length;
+    }
+
+    public List<Outbound> getBodyParts() { return bodyParts; }
+
+    // A body of unknown length, produced after the head has been sent.
+    public void setBody(ResponseStream stream, String contentType) {
+        this.body = new byte[0];
+        this.stream = stream;
+        this.contentLength = -1;
+        this.contentType = contentType;
+        setHeader("Transfer-Encoding", "chunked");
+    }
+
+    public ResponseStream getStream() { return stream; }
+
+    // A complete pre-encoded response from the static cache.
+    public void setCached(StaticCache.Entry entry) {
+        this.cached = entry;
+        setStatus(200, "OK");
+    }
+
+    public StaticCache.Entry getCached() { return cached; }
+
+    // Interim response for "Expect: 100-continue".
+    public static ByteBuffer continueResponse() {
+        return CONTINUE.duplicate();
+    }
+
+    public byte[] getBody() { return body; }
+
+    // Closes the files behind a response that will never be sent.
+    public void discard() {
+        for (Outbound part : bodyParts) {
+            part.close();
+        }
+        if (stream != null) {
+            stream.close();
+        }
+    }
+
+    public void setCookie(String key, String value) {
+        setHeader("Set-Cookie", key + "=" + value + "; Path=/; HttpOnly");
+    }
+
+    // The head as a byte array, without a Date line; see ResponseEncoder.
+    public byte[] encodeHead() {
+        return ResponseEncoder.encodeHead(this);
+    }
+}
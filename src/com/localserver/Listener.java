@@ -0,0 +1,41 @@
+package com.localserver;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+
+// One bound address and the servers currently configured on it. The
+// acceptor owns the channel and key; a config reload only swaps in new
+// VirtualHosts, which connections accepted here pick up at their next
+// request while exchanges already routed finish on their old Router.
+public class Listener {
+    private final String address;
+    private final ServerSocketChannel channel;
+    private SelectionKey key;
+    private volatile VirtualHosts hosts;
+
+    public Listener(String address, ServerSocketChannel channel, VirtualHosts hosts) {
+        this.address = address;
+        this.channel = channel;
+        this.hosts = hosts;
+    }
+
+    public String getAddress() { return address; }
+    public ServerSocketChannel getChannel() { return channel; }
+
+    public SelectionKey getKey() { return key; }
+    public void setKey(SelectionKey key) { this.key = key; }
+
+    public VirtualHosts getHosts() { return hosts; }
+    public void setHosts(VirtualHosts hosts) { this.hosts = hosts; }
+
+    // Stops accepting; connections already accepted here are not affected.
+    public void close() {
+        if (key != null) key.cancel();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // ignore
+        }
+    }
+}
@@ -14,7 +14,7 @@ public class Main {
             Map<String, Object> config = loader.parse();
             System.out.println("Configuration loaded successfully.");
             
-            Server server = new Server(config);
+            Server server = new Server(config, configPath);
             server.start();
 
         } catch (Exception e) {
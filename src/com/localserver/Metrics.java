@@ -0,0 +1,164 @@
+package com.localserver;
+
+import java.math.BigDecimal;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+// Registry behind the metrics endpoint. Components keep their own counters
+// (plain fields, LongAdders, Histograms) and register them here once; the
+// registry is only read when the endpoint is scraped, so recording never
+// touches it. Registering the same name and labels again replaces the old
+// source, and histograms are shared, so counts survive routers being
+// rebuilt.
+public class Metrics {
+    private static final String PREFIX = "localserver_";
+
+    // Latency histogram with log-linear buckets: nine linear steps per
+    // decade, from 10 microseconds to 100 seconds. Recording is one binary
+    // search and two atomic adds.
+    public static final class Histogram {
+        private static final long[] BOUNDS_US;
+        private static final String[] LE;
+        static {
+            long[] bounds = new long[7 * 9 + 1];
+            int i = 0;
+            for (long decade = 10; decade <= 10_000_000; decade *= 10) {
+                for (int step = 1; step <= 9; step++) {
+                    bounds[i++] = step * decade;
+                }
+            }
+            bounds[i] = 100_000_000;
+            BOUNDS_US = bounds;
+            LE = new String[bounds.length];
+            for (int j = 0; j < bounds.length; j++) {
+                LE[j] = BigDecimal.valueOf(bounds[j], 6).stripTrailingZeros().toPlainString();
+            }
+        }
+
+        private final AtomicLongArray counts = new AtomicLongArray(BOUNDS_US.length + 1);
+        private final LongAdder sumNanos = new LongAdder();
+
+        public void record(long nanos) {
+            long micros = nanos / 1000;
+            int lo = 0;
+            int hi = BOUNDS_US.length;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (BOUNDS_US[mid] < micros) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+            counts.incrementAndGet(lo);
+            sumNanos.add(nanos);
+        }
+
+        public long getCount() {
+            long total = 0;
+            for (int i = 0; i < counts.length(); i++) {
+                total += counts.get(i);
+            }
+            return total;
+        }
+
+        private void write(StringBuilder out, String name, String labels) {
+            String separator = labels.isEmpty() ? "" : ",";
+            long cumulative = 0;
+            for (int i = 0; i < BOUNDS_US.length; i++) {
+                cumulative += counts.get(i);
+                out.append(name).append("_bucket{").append(labels).append(separator)
+                        .append("le=\"").append(LE[i]).append("\"} ").append(cumulative).append('\n');
+            }
+            cumulative += counts.get(BOUNDS_US.length);
+            out.append(name).append("_bucket{").append(labels).append(separator)
+                    .append("le=\"+Inf\"} ").append(cumulative).append('\n');
+            String braces = labels.isEmpty() ? "" : "{" + labels + "}";
+            out.append(name).append("_sum").append(braces).append(' ').append(sumNanos.sum() / 1e9).append('\n');
+            out.append(name).append("_count").append(braces).append(' ').append(cumulative).append('\n');
+        }
+    }
+
+    private static final class Family {
+        private final String type;
+        private final String help;
+        private final Map<String, Object> series = new LinkedHashMap<>();
+
+        Family(String type, String help) {
+            this.type = type;
+            this.help = help;
+        }
+    }
+
+    private final Map<String, Family> families = new LinkedHashMap<>();
+
+    public void counter(String name, String labels, String help, LongSupplier value) {
+        register("counter", name, labels, help, value);
+    }
+
+    public void gauge(String name, String labels, String help, LongSupplier value) {
+        register("gauge", name, labels, help, value);
+    }
+
+    // The histogram registered under name and labels, created on first use.
+    // Histograms that have not recorded anything are left out of the output.
+    public synchronized Histogram histogram(String name, String labels, String help) {
+        Family family = families.computeIfAbsent(PREFIX + name, n -> new Family("histogram", help));
+        return (Histogram) family.series.computeIfAbsent(labels, l -> new Histogram());
+    }
+
+    private synchronized void register(String type, String name, String labels, String help, LongSupplier value) {
+        families.computeIfAbsent(PREFIX + name, n -> new Family(type, help)).series.put(labels, value);
+    }
+
+    // Builds a label list such as server="a",route="/x" from name/value pairs.
+    public static String labels(String... pairs) {
+        StringBuilder out = new StringBuilder();
+        for (int i = 0; i + 1 < pairs.length; i += 2) {
+            if (out.length() > 0) out.append(',');
+            out.append(pairs[i]).append("=\"");
+            String value = pairs[i + 1];
+            for (int j = 0; j < value.length(); j++) {
+                char c = value.charAt(j);
+                if (c == '\\' || c == '"') {
+                    out.append('\\').append(c);
+                } else if (c == '\n') {
+                    out.append("\\n");
+                } else {
+                    out.append(c);
+                }
+            }
+            out.append('"');
+        }
+        return out.toString();
+    }
+
+    // Everything in the Prometheus text exposition format.
+    public synchronized String render() {
+        StringBuilder out = new StringBuilder(8192);
+        for (Map.Entry<String, Family> entry : families.entrySet()) {
+            String name = entry.getKey();
+            Family family = entry.getValue();
+            out.append("# HELP ").append(name).append(' ').append(family.help).append('\n');
+            out.append("# TYPE ").append(name).append(' ').append(family.type).append('\n');
+            for (Map.Entry<String, Object> series : family.series.entrySet()) {
+                String labels = series.getKey();
+                Object source = series.getValue();
+                if (source instanceof Histogram) {
+                    Histogram histogram = (Histogram) source;
+                    if (histogram.getCount() > 0) {
+                        histogram.write(out, name, labels);
+                    }
+                } else {
+                    out.append(name);
+                    if (!labels.isEmpty()) out.append('{').append(labels).append('}');
+                    out.append(' ').append(((LongSupplier) source).getAsLong()).append('\n');
+                }
+            }
+        }
+        return out.toString();
+    }
+}
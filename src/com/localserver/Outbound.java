@@ -0,0 +1,52 @@
+package com.localserver;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+// A piece of a response waiting in a connection's output queue. Writes are
+// non-blocking: writeTo sends what the socket accepts and is called again on
+// the next OP_WRITE until nothing remains.
+public interface Outbound {
+    long writeTo(SocketChannel channel) throws IOException;
+
+    long remaining();
+
+    // True when the piece has nothing to write yet but is not done either
+    // (a ResponseStream waiting on its producer). The connection then waits
+    // to be woken instead of polling OP_WRITE.
+    default boolean awaitingData() {
+        return false;
+    }
+
+    // The bytes left to write when this piece is a single in-memory buffer,
+    // so that runs of such pieces can go out in one gathering write; null
+    // for anything else.
+    default ByteBuffer buffer() {
+        return null;
+    }
+
+    // Releases whatever backs this piece; called once it is fully written or
+    // when the connection goes away first.
+    default void close() {
+    }
+
+    static Outbound of(ByteBuffer buffer) {
+        return new Outbound() {
+            @Override
+            public long writeTo(SocketChannel channel) throws IOException {
+                return channel.write(buffer);
+            }
+
+            @Override
+            public long remaining() {
+                return buffer.remaining();
+            }
+
+            @Override
+            public ByteBuffer buffer() {
+                return buffer;
+            }
+        };
+    }
+}
@@ -0,0 +1,485 @@
+package com.localserver;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// One event loop with its own Selector. The acceptor hands each new channel
+// to exactly one reactor and the connection stays there until it closes, so
+// Connection state is only ever touched by this thread.
+//
+// Each connection is closed when it stops making progress in its current
+// phase: a head that is not complete within header_timeout_ms of its first
+// byte, a body with no bytes for body_timeout_ms, output the client does not
+// read for write_timeout_ms, or no new request within keep_alive_timeout_ms.
+// Time spent in a worker or waiting on a streamed body does not count.
+public class Reactor implements Runnable {
+    private static final long TIMER_TICK_MS = 100;
+    private static final byte[] NO_BODY = new byte[0];
+
+    private enum Phase { NONE, HEADER, BODY, WRITE, IDLE }
+
+    private final String name;
+    private final Dispatcher dispatcher;
+    private final BufferPool bufferPool;
+    private final ResponseEncoder encoder = new ResponseEncoder();
+    private final Selector selector;
+    private final Queue<Connection> pending = new ConcurrentLinkedQueue<>();
+    private final Queue<SelectionKey> completed = new ConcurrentLinkedQueue<>();
+    private final ArrayDeque<SelectionKey> starved = new ArrayDeque<>();
+    private final AtomicInteger connectionCount = new AtomicInteger();
+    private final int keepAliveTimeoutMs;
+    private final int headerTimeoutMs;
+    private final int bodyTimeoutMs;
+    private final int writeTimeoutMs;
+    // Holds at most one timeout per connection. Deadlines are checked
+    // lazily: the timer fires at the deadline it was set for and then looks
+    // at the connection again, so reads and writes only update timestamps.
+    private final TimerWheel<SelectionKey> timers = new TimerWheel<>(TIMER_TICK_MS, 1024, System.currentTimeMillis());
+    private final AtomicLongArray timeouts = new AtomicLongArray(Phase.values().length);
+    private final Runnable onClose;
+    private final AccessLog accessLog;
+    private final int keepAliveMaxRequests;
+    private final int writeHighWaterMark;
+    private final Metrics.Histogram loopTime;
+    // Only this thread writes these; the metrics endpoint reads them.
+    private volatile long bytesReceived;
+    private volatile long bytesSent;
+
+    // onClose runs on this thread after each connection is closed.
+    public Reactor(String name, Map<String, Object> config, Dispatcher dispatcher, Metrics metrics,
+                   AccessLog accessLog, Runnable onClose) throws IOException {
+        this.name = name;
+        this.accessLog = accessLog;
+        this.onClose = onClose;
+        this.loopTime = metrics.histogram("loop_iteration_seconds", Metrics.labels("reactor", name),
+                "Time a reactor spends on each pass of its event loop, not counting select.");
+        for (Phase phase : Phase.values()) {
+            if (phase == Phase.NONE) continue;
+            metrics.counter("connection_timeouts_total",
+                    Metrics.labels("reactor", name, "phase", phase.name().toLowerCase()),
+                    "Connections closed for making no progress, by phase.", () -> timeouts.get(phase.ordinal()));
+        }
+        this.dispatcher = dispatcher;
+        this.bufferPool = new BufferPool(config);
+        this.selector = Selector.open();
+        this.keepAliveTimeoutMs = ConfigLoader.getInt(config, "keep_alive_timeout_ms", 5000);
+        this.headerTimeoutMs = ConfigLoader.getInt(config, "header_timeout_ms", 10000);
+        this.bodyTimeoutMs = ConfigLoader.getInt(config, "body_timeout_ms", 30000);
+        this.writeTimeoutMs = ConfigLoader.getInt(config, "write_timeout_ms", 30000);
+        this.keepAliveMaxRequests = ConfigLoader.getInt(config, "keep_alive_max_requests", 100);
+        this.writeHighWaterMark = ConfigLoader.getInt(config, "write_high_water_mark", 262144);
+    }
+
+    public String getName() { return name; }
+
+    public int getConnectionCount() { return connectionCount.get(); }
+
+    public BufferPool getBufferPool() { return bufferPool; }
+    public long getBytesReceived() { return bytesReceived; }
+    public long getBytesSent() { return bytesSent; }
+
+    // Called from the acceptor thread.
+    public void register(SocketChannel channel, Listener listener) {
+        connectionCount.incrementAndGet();
+        pending.add(new Connection(channel, listener, bufferPool));
+        selector.wakeup();
+    }
+
+    // Called from worker threads once an exchange on this key has a response.
+    public void complete(SelectionKey key) {
+        completed.add(key);
+        selector.wakeup();
+    }
+
+    public void wakeup() {
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            try {
+                // The timeout only has to wake the loop for the next tick
+                // of the timer wheel.
+                int ready = selector.select(timers.size() > 0 ? TIMER_TICK_MS : 1000);
+                long start = System.nanoTime();
+                try {
+                    runOnce(ready);
+                } finally {
+                    loopTime.record(System.nanoTime() - start);
+                }
+            } catch (IOException e) {
+                System.err.println("Selector error: " + e.getMessage());
+            } catch (RuntimeException e) {
+                // A bug outside any one connection; keep serving the rest.
+                System.err.println("Reactor " + name + " error: " + e);
+            }
+        }
+    }
+
+    private void runOnce(int ready) {
+        registerPending();
+        processCompleted();
+        retryStarved();
+        long now = System.currentTimeMillis();
+        timers.advance(now, this::expire);
+        bufferPool.checkLeaks(now);
+        if (ready == 0) return;
+
+        Set<SelectionKey> selectedKeys = selector.selectedKeys();
+        Iterator<SelectionKey> iter = selectedKeys.iterator();
+
+        while (iter.hasNext()) {
+            SelectionKey key = iter.next();
+            iter.remove();
+
+            if (!key.isValid()) continue;
+
+            try {
+                if (key.isWritable()) {
+                    handleWrite(key);
+                }
+                if (key.isValid() && key.isReadable()) {
+                    handleRead(key);
+                }
+            } catch (IOException | RuntimeException e) {
+                connectionError(key, e);
+            }
+        }
+    }
+
+    private void registerPending() {
+        Connection connection;
+        while ((connection = pending.poll()) != null) {
+            SocketChannel channel = connection.getChannel();
+            try {
+                channel.configureBlocking(false);
+                SelectionKey key = channel.register(selector, SelectionKey.OP_READ, connection);
+                updateTimeout(key, System.currentTimeMillis());
+            } catch (IOException e) {
+                accessLog.error(connection.getRemoteAddress(), "Error registering connection: " + e.getMessage());
+                connectionCount.decrementAndGet();
+                onClose.run();
+                try {
+                    channel.close();
+                } catch (IOException ex) {
+                    // ignore
+                }
+            }
+        }
+    }
+
+    private void processCompleted() {
+        SelectionKey key;
+        while ((key = completed.poll()) != null) {
+            if (!key.isValid()) {
+                ((Connection) key.attachment()).release();
+                continue;
+            }
+            try {
+                processInput(key);
+            } catch (IOException | RuntimeException e) {
+                connectionError(key, e);
+            }
+        }
+    }
+
+    private void retryStarved() {
+        while (!starved.isEmpty()) {
+            SelectionKey key = starved.peek();
+            if (key.isValid()) {
+                Connection connection = (Connection) key.attachment();
+                if (!dispatcher.tryAcquire(this)) return;
+                Exchange stalled = connection.getStalled();
+                try {
+                    dispatcher.dispatch(stalled.getRouter(), stalled, this, key);
+                    connection.setStalled(null);
+                    processInput(key);
+                } catch (IOException | RuntimeException e) {
+                    connectionError(key, e);
+                }
+            }
+            starved.poll();
+        }
+    }
+
+    private void handleRead(SelectionKey key) throws IOException {
+        Connection connection = (Connection) key.attachment();
+        SocketChannel clientChannel = connection.getChannel();
+        connection.ensureCapacity();
+        ByteBuffer buffer = connection.getInput();
+        int bytesRead = clientChannel.read(buffer);
+
+        if (bytesRead == -1) {
+            close(key);
+            return;
+        }
+        if (bytesRead == 0) {
+            connection.trimInput();
+            return;
+        }
+        bytesReceived += bytesRead;
+        connection.touch(System.currentTimeMillis());
+        processInput(key);
+    }
+
+    private void handleWrite(SelectionKey key) throws IOException {
+        // Draining the queue may lift backpressure, in which case requests
+        // that were held back in the read buffer get served now.
+        processInput(key);
+    }
+
+    // Queues a head chunk and an in-memory body. The body is copied into
+    // pooled direct memory, after the head when its chunk has room, so the
+    // write skips the JDK's temporary direct copy. Bodies above
+    // BufferPool.MAX_CHUNK are queued as they are: the pool would hand out a
+    // heap buffer for them anyway, and copying would only add work.
+    private void enqueueWithBody(Connection connection, BufferPool.Chunk head, byte[] body) {
+        ByteBuffer buffer = head.buffer();
+        int end = buffer.limit();
+        if (body.length <= buffer.capacity() - end) {
+            buffer.limit(end + body.length);
+            buffer.put(end, body);
+            connection.enqueue(head);
+        } else if (body.length <= BufferPool.MAX_CHUNK) {
+            BufferPool.Chunk chunk = bufferPool.acquire(body.length);
+            chunk.buffer().put(body).flip();
+            connection.enqueue(head);
+            connection.enqueue(chunk);
+        } else {
+            connection.enqueue(head);
+            connection.enqueue(ByteBuffer.wrap(body));
+        }
+    }
+
+    // Parse every complete request in the buffer and dispatch it, as long as
+    // the output queue stays under the high-water mark and the in-flight
+    // limits allow. Finished responses are queued strictly in request order.
+    // The parser keeps whatever is left over for the next read.
+    private void processInput(SelectionKey key) throws IOException {
+        Connection connection = (Connection) key.attachment();
+        ByteBuffer buffer = connection.getInput();
+        boolean heldBack;
+        boolean drained;
+        do {
+            heldBack = false;
+            buffer.flip();
+            while (!connection.isCloseAfterWrite() && connection.getStalled() == null) {
+                if (connection.getQueuedBytes() >= writeHighWaterMark) {
+                    heldBack = true;
+                    break;
+                }
+                if (connection.getPendingExchanges() >= dispatcher.getMaxInFlightPerConnection()) break;
+                Exchange exchange;
+                if (!connection.getParser().isReadingBody()) {
+                    connection.refreshHosts();
+                }
+                try {
+                    HttpRequest request = connection.getParser().parse(buffer);
+                    if (request == null) break;
+                    request.setRemoteAddress(connection.getRemoteAddress());
+                    connection.setHeadStarted(0);
+                    boolean keepAlive = request.isKeepAlive()
+                            && connection.incrementRequestCount() < keepAliveMaxRequests;
+                    exchange = new Exchange(request, keepAlive, connection.getHosts().select(request));
+                } catch (HttpParser.ParseException e) {
+                    connection.getParser().abort();
+                    Router router = connection.getHosts().getDefault();
+                    exchange = new Exchange(null, false, router);
+                    exchange.complete(router.error(e.getStatus(), e.getReason()));
+                }
+                connection.addExchange(exchange);
+                if (!exchange.isKeepAlive()) {
+                    connection.setCloseAfterWrite();
+                }
+                if (exchange.getResponse() == null) {
+                    if (dispatcher.tryAcquire(this)) {
+                        dispatcher.dispatch(exchange.getRouter(), exchange, this, key);
+                    } else {
+                        connection.setStalled(exchange);
+                        starved.add(key);
+                    }
+                }
+            }
+            buffer.compact();
+            connection.trimInput();
+            buffer = connection.getInput();
+            Exchange done;
+            while ((done = connection.pollCompleted()) != null) {
+                HttpResponse response = done.getResponse();
+                response.setKeepAlive(done.isKeepAlive());
+                // A HEAD response gets the head a GET would, Content-Length
+                // included, and nothing else; a body here would be read as
+                // the start of the next response.
+                boolean headOnly = done.getRequest() != null && done.getRequest().getMethod().equals("HEAD");
+                if (response.getCached() != null) {
+                    connection.enqueue(response.getCached().head());
+                    connection.enqueue(encoder.trailer(done.isKeepAlive()));
+                    if (!headOnly) {
+                        connection.enqueue(response.getCached().body());
+                    }
+                } else if (response.getStream() != null) {
+                    ResponseStream stream = response.getStream();
+                    if (headOnly) {
+                        // The producer fails at its next write and stops.
+                        stream.close();
+                        connection.enqueue(encoder.encode(response, bufferPool));
+                    } else {
+                        if (!stream.isChunked()) {
+                            response.setKeepAlive(false);
+                            connection.setCloseAfterWrite();
+                        }
+                        stream.attach(() -> complete(key));
+                        connection.enqueue(encoder.encode(response, bufferPool));
+                        connection.enqueue(stream);
+                    }
+                } else {
+                    enqueueWithBody(connection, encoder.encode(response, bufferPool),
+                            headOnly ? NO_BODY : response.getBody());
+                    for (Outbound part : response.getBodyParts()) {
+                        if (headOnly) {
+                            part.close();
+                        } else {
+                            connection.enqueue(part);
+                        }
+                    }
+                }
+                if (accessLog.isEnabled()) {
+                    connection.enqueue(connection.getCompletions(accessLog).add(done));
+                }
+            }
+            // A 100-continue must not overtake earlier responses; the parser
+            // keeps the flag until they have all been queued.
+            if (connection.getPendingExchanges() == 0 && connection.getParser().takeExpectContinue()) {
+                connection.enqueue(HttpResponse.continueResponse());
+            }
+            long sentBefore = connection.getBytesSent();
+            drained = connection.flush();
+            long sent = connection.getBytesSent() - sentBefore;
+            bytesSent += sent;
+            if (sent > 0) {
+                long now = System.currentTimeMillis();
+                connection.touch(now);
+                connection.setWriteStalledSince(drained ? 0 : now);
+            }
+        } while (heldBack && connection.getQueuedBytes() < writeHighWaterMark);
+
+        if (drained && connection.isCloseAfterWrite() && connection.getPendingExchanges() == 0) {
+            close(key);
+            return;
+        }
+        int ops = 0;
+        if (!drained && !connection.isAwaitingData()) {
+            ops |= SelectionKey.OP_WRITE;
+        }
+        if (!connection.isCloseAfterWrite()
+                && connection.getQueuedBytes() < writeHighWaterMark
+                && connection.getPendingExchanges() < dispatcher.getMaxInFlightPerConnection()
+                && connection.getStalled() == null) {
+            ops |= SelectionKey.OP_READ;
+        }
+        key.interestOps(ops);
+
+        long now = System.currentTimeMillis();
+        if (drained || connection.isAwaitingData()) {
+            connection.setWriteStalledSince(0);
+        } else if (connection.getWriteStalledSince() == 0) {
+            connection.setWriteStalledSince(now);
+        }
+        // The header clock starts with the first byte of a head the client
+        // is free to send; bytes held back by this side do not count.
+        if ((ops & SelectionKey.OP_READ) == 0 || connection.getParser().isReadingBody()
+                || connection.getInput().position() == 0) {
+            connection.setHeadStarted(0);
+        } else if (connection.getHeadStarted() == 0) {
+            connection.setHeadStarted(now);
+        }
+        updateTimeout(key, now);
+    }
+
+    // What the connection is waiting on the client for, if anything.
+    private Phase phase(SelectionKey key, Connection connection) {
+        if (connection.getWriteStalledSince() != 0) return Phase.WRITE;
+        // Reading is paused for a worker, a streamed body or the in-flight
+        // limits; none of that is the client's doing.
+        if ((key.interestOps() & SelectionKey.OP_READ) == 0) return Phase.NONE;
+        if (connection.getParser().isReadingBody()) return Phase.BODY;
+        if (connection.getHeadStarted() != 0) return Phase.HEADER;
+        if (connection.getPendingExchanges() > 0 || connection.hasQueuedOutput()) return Phase.NONE;
+        return Phase.IDLE;
+    }
+
+    private long deadline(Phase phase, Connection connection) {
+        switch (phase) {
+            case WRITE: return connection.getWriteStalledSince() + writeTimeoutMs;
+            case BODY: return connection.getLastActivity() + bodyTimeoutMs;
+            case HEADER: return connection.getHeadStarted() + headerTimeoutMs;
+            case IDLE: return connection.getLastActivity() + keepAliveTimeoutMs;
+            default: return Long.MAX_VALUE;
+        }
+    }
+
+    // Makes sure a timer fires no later than the connection's deadline. A
+    // timer that is already due earlier is left alone; it moves itself on
+    // when it fires.
+    private void updateTimeout(SelectionKey key, long now) {
+        Connection connection = (Connection) key.attachment();
+        long deadline = deadline(phase(key, connection), connection);
+        TimerWheel.Timeout<SelectionKey> timeout = connection.getTimeout();
+        if (timeout != null && timeout.isPending()) {
+            if (timeout.getDeadline() <= deadline) return;
+            timers.cancel(timeout);
+        }
+        connection.setTimeout(deadline == Long.MAX_VALUE ? null : timers.schedule(key, deadline));
+    }
+
+    private void expire(SelectionKey key) {
+        if (!key.isValid()) return;
+        Connection connection = (Connection) key.attachment();
+        Phase phase = phase(key, connection);
+        long deadline = deadline(phase, connection);
+        if (deadline <= System.currentTimeMillis()) {
+            timeouts.incrementAndGet(phase.ordinal());
+            close(key);
+        } else if (deadline != Long.MAX_VALUE) {
+            connection.setTimeout(timers.schedule(key, deadline));
+        }
+    }
+
+    // A RuntimeException is a bug in handling this connection, not a network
+    // error, so it is logged with its type. Either way only this connection
+    // is closed and the reactor carries on with the others.
+    private void connectionError(SelectionKey key, Exception e) {
+        String message = e instanceof IOException ? e.getMessage() : e.toString();
+        accessLog.error(((Connection) key.attachment()).getRemoteAddress(), "Connection error: " + message);
+        close(key);
+    }
+
+    private void close(SelectionKey key) {
+        key.cancel();
+        try {
+            key.channel().close();
+        } catch (IOException e) {
+            // ignore
+        }
+        Connection connection = (Connection) key.attachment();
+        if (connection.getTimeout() != null) {
+            timers.cancel(connection.getTimeout());
+        }
+        if (connection.release()) {
+            connectionCount.decrementAndGet();
+            onClose.run();
+        }
+    }
+}
@@ -0,0 +1,218 @@
+package com.localserver;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+// Writes response heads straight into pooled direct buffers. Status lines,
+// the Server and Connection lines and recently used Content-Type lines are
+// kept pre-encoded; Content-Length is written digit by digit and the Date
+// line is formatted once per second. Each reactor has its own encoder, so
+// none of this state is shared between threads.
+public class ResponseEncoder {
+    private static final String[] REASONS = new String[600];
+    private static final byte[][] STATUS_LINES = new byte[600][];
+    static final String DEFAULT_SERVER = "JavaNioServer/1.0";
+    private static final byte[] SERVER_LINE = ascii("Server: " + DEFAULT_SERVER + "\r\n");
+    private static final byte[] CONTENT_LENGTH = ascii("Content-Length: ");
+    private static final byte[] KEEP_ALIVE = ascii("Connection: keep-alive\r\n");
+    private static final byte[] CLOSE = ascii("Connection: close\r\n");
+    private static final byte[] CRLF = ascii("\r\n");
+    private static final int MAX_CONTENT_TYPES = 256;
+    private static final DateTimeFormatter HTTP_DATE = DateTimeFormatter
+            .ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US).withZone(ZoneOffset.UTC);
+
+    static {
+        reason(100, "Continue");
+        reason(200, "OK");
+        reason(201, "Created");
+        reason(204, "No Content");
+        reason(206, "Partial Content");
+        reason(301, "Moved Permanently");
+        reason(302, "Found");
+        reason(304, "Not Modified");
+        reason(400, "Bad Request");
+        reason(403, "Forbidden");
+        reason(404, "Not Found");
+        reason(405, "Method Not Allowed");
+        reason(413, "Payload Too Large");
+        reason(416, "Range Not Satisfiable");
+        reason(431, "Request Header Fields Too Large");
+        reason(500, "Internal Server Error");
+        reason(501, "Not Implemented");
+        reason(503, "Service Unavailable");
+        reason(504, "Gateway Timeout");
+    }
+
+    private static void reason(int code, String message) {
+        REASONS[code] = message;
+        STATUS_LINES[code] = ascii("HTTP/1.1 " + code + " " + message + "\r\n");
+    }
+
+    private final Map<String, byte[]> contentTypes = new HashMap<>();
+    private long dateSecond = Long.MIN_VALUE;
+    private byte[] dateLine;
+    private ByteBuffer keepAliveEnd;
+    private ByteBuffer closeEnd;
+
+    // The full head of response in a chunk from pool, ready to be written.
+    // Heads that outgrow a chunk are retried in larger ones.
+    public BufferPool.Chunk encode(HttpResponse response, BufferPool pool) {
+        refreshDate();
+        int size = 8192;
+        while (true) {
+            BufferPool.Chunk chunk = pool.acquire(size);
+            try {
+                ByteBuffer out = chunk.buffer();
+                writeHead(out, response, dateLine, contentTypes);
+                out.put(CRLF);
+                out.flip();
+                return chunk;
+            } catch (BufferOverflowException e) {
+                pool.release(chunk);
+                size *= 4;
+            }
+        }
+    }
+
+    // Ends a head cached without Date and Connection: the current Date line,
+    // the Connection line and the blank line.
+    public ByteBuffer trailer(boolean keepAlive) {
+        refreshDate();
+        return (keepAlive ? keepAliveEnd : closeEnd).duplicate();
+    }
+
+    private void refreshDate() {
+        long now = System.currentTimeMillis();
+        if (now / 1000 == dateSecond) return;
+        dateSecond = now / 1000;
+        dateLine = ascii("Date: " + HTTP_DATE.format(Instant.ofEpochSecond(dateSecond)) + "\r\n");
+        keepAliveEnd = trailer(dateLine, KEEP_ALIVE);
+        closeEnd = trailer(dateLine, CLOSE);
+    }
+
+    private static ByteBuffer trailer(byte[] date, byte[] connection) {
+        ByteBuffer end = ByteBuffer.allocateDirect(date.length + connection.length + CRLF.length);
+        end.put(date).put(connection).put(CRLF).flip();
+        return end.asReadOnlyBuffer();
+    }
+
+    // The head as a heap array, for heads stored by the static cache. It has
+    // no Date line, which goes stale, and only the lines set on response.
+    static byte[] encodeHead(HttpResponse response) {
+        for (int size = 1024; ; size *= 4) {
+            ByteBuffer out = ByteBuffer.allocate(size);
+            try {
+                writeHead(out, response, null, null);
+                out.put(CRLF);
+                byte[] head = new byte[out.position()];
+                out.flip();
+                out.get(head);
+                return head;
+            } catch (BufferOverflowException e) {
+                // try again with more room
+            }
+        }
+    }
+
+    // Every line of the head except the final blank line.
+    private static void writeHead(ByteBuffer out, HttpResponse response, byte[] dateLine,
+                                  Map<String, byte[]> contentTypes) {
+        int status = response.getStatusCode();
+        String message = response.getStatusMessage();
+        if (status >= 0 && status < STATUS_LINES.length && STATUS_LINES[status] != null
+                && REASONS[status].equals(message)) {
+            out.put(STATUS_LINES[status]);
+        } else {
+            putAscii(out, "HTTP/1.1 ");
+            putNumber(out, status);
+            out.put((byte) ' ');
+            putText(out, message);
+            out.put(CRLF);
+        }
+        if (dateLine != null) {
+            out.put(dateLine);
+        }
+        String server = response.getServer();
+        if (server == DEFAULT_SERVER) {
+            out.put(SERVER_LINE);
+        } else if (server != null) {
+            putHeader(out, "Server", server);
+        }
+        String contentType = response.getContentType();
+        if (contentType != null) {
+            byte[] line = contentTypes != null ? contentTypes.get(contentType) : null;
+            if (line != null) {
+                out.put(line);
+            } else if (contentTypes != null && contentTypes.size() < MAX_CONTENT_TYPES) {
+                line = ("Content-Type: " + contentType + "\r\n").getBytes(StandardCharsets.UTF_8);
+                contentTypes.put(contentType, line);
+                out.put(line);
+            } else {
+                putHeader(out, "Content-Type", contentType);
+            }
+        }
+        long length = response.getContentLength();
+        if (length >= 0) {
+            out.put(CONTENT_LENGTH);
+            putNumber(out, length);
+            out.put(CRLF);
+        }
+        Map<String, String> headers = response.getExtraHeaders();
+        if (headers != null) {
+            for (Map.Entry<String, String> entry : headers.entrySet()) {
+                putHeader(out, entry.getKey(), entry.getValue());
+            }
+        }
+        Boolean keepAlive = response.getKeepAlive();
+        if (keepAlive != null) {
+            out.put(keepAlive ? KEEP_ALIVE : CLOSE);
+        }
+    }
+
+    private static void putHeader(ByteBuffer out, String name, String value) {
+        putAscii(out, name);
+        out.put((byte) ':').put((byte) ' ');
+        putText(out, value);
+        out.put(CRLF);
+    }
+
+    private static void putNumber(ByteBuffer out, long value) {
+        if (value < 0) {
+            out.put((byte) '-');
+            value = -value;
+        }
+        long divisor = 1;
+        while (divisor <= value / 10) divisor *= 10;
+        for (; divisor > 0; divisor /= 10) {
+            out.put((byte) ('0' + (value / divisor) % 10));
+        }
+    }
+
+    private static void putAscii(ByteBuffer out, String s) {
+        for (int i = 0; i < s.length(); i++) {
+            out.put((byte) s.charAt(i));
+        }
+    }
+
+    // Values are almost always ASCII; anything else is sent as UTF-8.
+    private static void putText(ByteBuffer out, String s) {
+        for (int i = 0; i < s.length(); i++) {
+            if (s.charAt(i) >= 0x80) {
+                out.put(s.getBytes(StandardCharsets.UTF_8));
+                return;
+            }
+        }
+        putAscii(out, s);
+    }
+
+    private static byte[] ascii(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+}
@@ -0,0 +1,219 @@
+package com.localserver;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+
+// A response body of unknown length. The handler supplies a Producer that
+// runs on the worker thread after the head has been queued, so the first
+// bytes go out before the rest exists. Output is framed with
+// Transfer-Encoding: chunked (or sent raw, closing the connection, for
+// HTTP/1.0 clients) and buffered up to a fixed capacity; past that the
+// producer blocks until the reactor has written some of it to the socket.
+public class ResponseStream implements Outbound {
+    public static final int DEFAULT_CAPACITY = 65536;
+    private static final int CHUNK_SIZE = 8192;
+    private static final byte[] CRLF = {'\r', '\n'};
+    private static final byte[] LAST_CHUNK = "0\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+
+    public interface Producer {
+        void produce(OutputStream out) throws IOException;
+    }
+
+    private final Producer producer;
+    private final int capacity;
+    private final ArrayDeque<ByteBuffer> buffers = new ArrayDeque<>();
+    private long buffered;
+    private boolean chunked = true;
+    private boolean finished;  // the producer is done and the terminator is queued
+    private boolean failed;    // the producer broke off; the response cannot be completed
+    private boolean closed;    // the connection went away
+    private Runnable onData;
+
+    public ResponseStream(Producer producer) {
+        this(producer, DEFAULT_CAPACITY);
+    }
+
+    public ResponseStream(Producer producer, int capacity) {
+        this.producer = producer;
+        this.capacity = capacity;
+    }
+
+    public Producer getProducer() { return producer; }
+
+    // Set before the producer runs; without chunking the body ends when the
+    // connection closes.
+    public synchronized void setChunked(boolean chunked) {
+        this.chunked = chunked;
+    }
+
+    public synchronized boolean isChunked() { return chunked; }
+
+    // Called by the reactor when the head is queued. onData is run whenever
+    // the producer adds data to an empty stream or finishes.
+    public synchronized void attach(Runnable onData) {
+        this.onData = onData;
+    }
+
+    // Runs the producer on the calling thread. A producer that throws leaves
+    // the body truncated, and the reactor closes the connection once the
+    // buffered part is written.
+    public void run() {
+        try {
+            OutputStream out = new ChunkOutput();
+            producer.produce(out);
+            // Only a producer that returned normally gets the terminating chunk.
+            out.close();
+        } catch (Throwable e) {
+            // Errors included, so the reactor still learns the body ended.
+            boolean gone;
+            synchronized (this) {
+                gone = closed;
+                failed = true;
+            }
+            if (!gone) {
+                System.err.println("Streaming response failed: " + e);
+            }
+            signal();
+        }
+    }
+
+    private void offer(byte[] data, int offset, int length, boolean last) throws IOException {
+        boolean wasEmpty;
+        synchronized (this) {
+            while (buffered >= capacity && !closed) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while streaming");
+                }
+            }
+            if (closed) {
+                throw new IOException("Connection closed");
+            }
+            wasEmpty = buffers.isEmpty();
+            if (length > 0) {
+                ByteBuffer frame;
+                if (chunked) {
+                    byte[] size = (Integer.toHexString(length) + "\r\n").getBytes(StandardCharsets.US_ASCII);
+                    frame = ByteBuffer.allocate(size.length + length + 2);
+                    frame.put(size).put(data, offset, length).put(CRLF).flip();
+                } else {
+                    frame = ByteBuffer.wrap(data.clone(), offset, length);
+                }
+                buffers.add(frame);
+                buffered += frame.remaining();
+            }
+            if (last) {
+                if (chunked) {
+                    buffers.add(ByteBuffer.wrap(LAST_CHUNK));
+                    buffered += LAST_CHUNK.length;
+                }
+                finished = true;
+            }
+        }
+        if (wasEmpty || last) {
+            signal();
+        }
+    }
+
+    private void signal() {
+        Runnable callback;
+        synchronized (this) {
+            callback = onData;
+        }
+        if (callback != null) {
+            callback.run();
+        }
+    }
+
+    @Override
+    public long writeTo(SocketChannel channel) throws IOException {
+        long total = 0;
+        synchronized (this) {
+            while (!buffers.isEmpty()) {
+                ByteBuffer head = buffers.peek();
+                int written = channel.write(head);
+                total += written;
+                buffered -= written;
+                if (head.hasRemaining()) break;
+                buffers.poll();
+            }
+            if (total > 0) {
+                notifyAll();
+            }
+            if (failed && buffers.isEmpty()) {
+                throw new IOException("Streaming response ended early");
+            }
+        }
+        return total;
+    }
+
+    // Bytes ready to be written, or 1 while the producer still owes the end
+    // of the body, so the connection does not consider the stream done.
+    @Override
+    public synchronized long remaining() {
+        if (buffered > 0) return buffered;
+        return finished ? 0 : 1;
+    }
+
+    // True when nothing can be sent until the producer supplies more data;
+    // the reactor then waits for onData instead of OP_WRITE.
+    @Override
+    public synchronized boolean awaitingData() {
+        return buffers.isEmpty() && !finished && !failed;
+    }
+
+    @Override
+    public synchronized void close() {
+        closed = true;
+        buffers.clear();
+        buffered = 0;
+        notifyAll();
+    }
+
+    // Coalesces small writes into chunks of up to CHUNK_SIZE bytes.
+    private class ChunkOutput extends OutputStream {
+        private final byte[] buf = new byte[CHUNK_SIZE];
+        private int count;
+        private boolean closed;
+
+        @Override
+        public void write(int b) throws IOException {
+            if (count == buf.length) flush();
+            buf[count++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (len >= buf.length) {
+                flush();
+                offer(b, off, len, false);
+                return;
+            }
+            if (len > buf.length - count) flush();
+            System.arraycopy(b, off, buf, count, len);
+            count += len;
+        }
+
+        // Sends what has been written so far as one chunk.
+        @Override
+        public void flush() throws IOException {
+            if (count == 0) return;
+            offer(buf, 0, count, false);
+            count = 0;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) return;
+            closed = true;
+            offer(buf, 0, count, true);
+            count = 0;
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package com.localserver;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Function;
+
+// The "routes" block compiled once at startup. Prefixes are stored in a
+// character trie, so matching walks the request path once without
+// allocating; the deepest route whose prefix ends on a segment boundary
+// wins. Each route carries its allowed methods as a bitmask, the matching
+// Allow header, and the handler chosen for it.
+public class RouteTable {
+    private static final String[] METHODS = {"GET", "HEAD", "POST", "PUT", "DELETE", "OPTIONS", "PATCH"};
+    private static final int ALL_METHODS = (1 << METHODS.length) - 1;
+
+    public interface Handler {
+        HttpResponse handle(HttpRequest request, Route route);
+    }
+
+    public static class Route {
+        private final String prefix;
+        private final Map<String, Object> config;
+        private final int methods;
+        private final String allow;
+        private Handler handler;
+        private Metrics.Histogram[] latency;
+
+        Route(String prefix, Map<String, Object> config) {
+            this.prefix = prefix;
+            this.config = config;
+            Object listed = config.get("methods");
+            int mask = 0;
+            if (listed instanceof Iterable) {
+                for (Object method : (Iterable<Object>) listed) {
+                    mask |= methodBit(method.toString());
+                }
+                // HEAD is GET without the body, so a GET route serves it too.
+                if ((mask & methodBit("GET")) != 0) {
+                    mask |= methodBit("HEAD");
+                }
+            } else {
+                mask = ALL_METHODS;
+            }
+            this.methods = mask;
+            StringBuilder allow = new StringBuilder();
+            for (int i = 0; i < METHODS.length; i++) {
+                if ((mask & (1 << i)) == 0) continue;
+                if (allow.length() > 0) allow.append(", ");
+                allow.append(METHODS[i]);
+            }
+            this.allow = allow.toString();
+        }
+
+        public String getPrefix() { return prefix; }
+        public Map<String, Object> getConfig() { return config; }
+        public Handler getHandler() { return handler; }
+
+        public boolean allows(String method) {
+            return (methods & methodBit(method)) != 0;
+        }
+
+        // Value for the Allow header of a 405 response.
+        public String getAllow() { return allow; }
+
+        // Handling time by status class (1xx to 5xx), filled in by the Router.
+        public Metrics.Histogram[] getLatency() { return latency; }
+        public void setLatency(Metrics.Histogram[] latency) { this.latency = latency; }
+    }
+
+    private static final class Node {
+        private char[] keys = new char[0];
+        private Node[] next = new Node[0];
+        private Route route;
+
+        Node child(char c) {
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i] == c) return next[i];
+            }
+            return null;
+        }
+
+        Node addChild(char c) {
+            Node node = child(c);
+            if (node != null) return node;
+            node = new Node();
+            keys = Arrays.copyOf(keys, keys.length + 1);
+            next = Arrays.copyOf(next, next.length + 1);
+            keys[keys.length - 1] = c;
+            next[next.length - 1] = node;
+            return node;
+        }
+    }
+
+    private final Node root = new Node();
+    private final Map<String, Route> routes = new LinkedHashMap<>();
+
+    // chooser picks the handler for each route from its settings.
+    public RouteTable(Map<String, Object> routesConfig, Function<Route, Handler> chooser) {
+        for (Map.Entry<String, Object> entry : routesConfig.entrySet()) {
+            String prefix = entry.getKey();
+            // "/cgi-bin/" and "/cgi-bin" mean the same route.
+            if (prefix.length() > 1 && prefix.endsWith("/")) {
+                prefix = prefix.substring(0, prefix.length() - 1);
+            } else if (prefix.isEmpty()) {
+                prefix = "/";
+            }
+            Route route = new Route(prefix, (Map<String, Object>) entry.getValue());
+            route.handler = chooser.apply(route);
+            Node node = root;
+            for (int i = 0; i < prefix.length(); i++) {
+                node = node.addChild(prefix.charAt(i));
+            }
+            node.route = route;
+            routes.put(prefix, route);
+        }
+    }
+
+    public Map<String, Route> getRoutes() { return routes; }
+
+    // The route with the longest prefix covering path, or null. A prefix
+    // covers the path itself and everything below it, so "/upload" matches
+    // "/upload/a.txt" but not "/uploads".
+    public Route match(String path) {
+        Route best = null;
+        Node node = root;
+        int length = path.length();
+        for (int i = 0; ; i++) {
+            if (node.route != null && (i == length || path.charAt(i) == '/' || path.charAt(i - 1) == '/')) {
+                best = node.route;
+            }
+            if (i == length) return best;
+            node = node.child(path.charAt(i));
+            if (node == null) return best;
+        }
+    }
+
+    static int methodBit(String method) {
+        switch (method) {
+            case "GET": return 1;
+            case "HEAD": return 1 << 1;
+            case "POST": return 1 << 2;
+            case "PUT": return 1 << 3;
+            case "DELETE": return 1 << 4;
+            case "OPTIONS": return 1 << 5;
+            case "PATCH": return 1 << 6;
+            default: return 0;
+        }
+    }
+}
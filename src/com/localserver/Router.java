@@ -3,79 +3,333 @@ package com.localserver;
 import java.io.File;
 import java.io.IOException;
 import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
-public class Router {
+public class Router implements HttpParser.BodyPolicy {
     private final Map<String, Object> config;
     private final String root;
+    private final Path rootPath;
+    private final StaticFiles staticFiles;
+    private final Compression compression;
+    private final long maxBodySize;
+    private final CGIHandler cgi;
+    private final SessionManager sessions;
+    private final Map<String, CGIWorkerPool> workerPools = new HashMap<>();
+    private final RouteTable routes;
+    private final Metrics metrics;
+    private final String metricsPath;
+    private final String serverLabel;
+    private final Metrics.Histogram[] unmatchedLatency;
+    // The router this one replaces during a config reload; only set while
+    // the constructor runs.
+    private Router previous;
+    // Requests dispatched here and not finished yet. A retired router
+    // closes what it owns once this reaches zero.
+    private final AtomicInteger active = new AtomicInteger();
+    private volatile Set<Object> retainedOnClose;
+    private final AtomicBoolean closed = new AtomicBoolean();
 
-    public Router(Map<String, Object> config) {
+    public Router(Map<String, Object> config, Metrics metrics) {
+        this(config, metrics, null);
+    }
+
+    // A router built by a config reload takes over what it can from the one
+    // it replaces: the session store always, the static cache when the root
+    // and the cache and compression settings are unchanged, and the CGI
+    // workers of each route whose settings are unchanged.
+    public Router(Map<String, Object> config, Metrics metrics, Router previous) {
+        this.previous = previous;
         this.config = config;
+        this.metrics = metrics;
+        Object path = config.getOrDefault("metrics_path", "/metrics");
+        this.metricsPath = path instanceof String && !((String) path).isEmpty() ? (String) path : null;
+        List<String> names = VirtualHosts.serverNames(config);
+        this.serverLabel = !names.isEmpty() ? names.get(0)
+                : config.getOrDefault("host", "localhost") + ":" + config.getOrDefault("port", 8080);
         this.root = (String) config.getOrDefault("root", "./www");
+        this.rootPath = Paths.get(root).toAbsolutePath().normalize();
+        this.compression = new Compression(config);
+        if (previous != null && previous.rootPath.equals(rootPath)
+                && sameSettings(previous.config, config, "static_cache", "compression")) {
+            this.staticFiles = new StaticFiles(previous.getCache(), compression);
+        } else {
+            this.staticFiles = new StaticFiles(config, rootPath, compression);
+        }
+        this.cgi = new CGIHandler(config);
+        this.sessions = previous != null ? previous.sessions : new SessionManager(config);
+        this.maxBodySize = ConfigLoader.getInt(config, "client_max_body_size", 1048576);
+        this.unmatchedLatency = latency("");
+        this.routes = new RouteTable(routeConfig(config), this::chooseHandler);
+        this.previous = null;
+        registerMetrics();
     }
 
+    private static boolean sameSettings(Map<String, Object> a, Map<String, Object> b, String... prefixes) {
+        for (Map<String, Object> side : List.of(a, b)) {
+            for (String key : side.keySet()) {
+                for (String prefix : prefixes) {
+                    if (key.startsWith(prefix) && !Objects.equals(a.get(key), b.get(key))) return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    public void enter() {
+        active.incrementAndGet();
+    }
+
+    public void exit() {
+        if (active.decrementAndGet() == 0 && retainedOnClose != null) {
+            close(retainedOnClose);
+        }
+    }
+
+    // Called once a reload has replaced this router. Requests already
+    // dispatched here finish normally; after the last one, everything this
+    // router owns that inUse does not contain is closed.
+    public void retire(Set<Object> inUse) {
+        retainedOnClose = inUse;
+        if (active.get() == 0) {
+            close(inUse);
+        }
+    }
+
+    public void close(Set<Object> inUse) {
+        if (!closed.compareAndSet(false, true)) return;
+        if (!inUse.contains(getCache())) getCache().close();
+        if (!inUse.contains(sessions)) sessions.close();
+        for (CGIWorkerPool pool : workerPools.values()) {
+            if (!inUse.contains(pool)) pool.close();
+        }
+    }
+
+    // Adds the caches, session stores and worker pools this router uses.
+    public void collectResources(Set<Object> into) {
+        into.add(getCache());
+        into.add(sessions);
+        into.addAll(workerPools.values());
+    }
+
+    private Metrics.Histogram[] latency(String route) {
+        Metrics.Histogram[] histograms = new Metrics.Histogram[5];
+        for (int i = 0; i < histograms.length; i++) {
+            histograms[i] = metrics.histogram("request_duration_seconds",
+                    Metrics.labels("server", serverLabel, "route", route, "status", (i + 1) + "xx"),
+                    "Time from dispatch until the response head is ready.");
+        }
+        return histograms;
+    }
+
+    private void registerMetrics() {
+        String server = Metrics.labels("server", serverLabel);
+        metrics.gauge("cgi_processes", server, "CGI processes currently running.", cgi::getRunningCount);
+        metrics.counter("cgi_processes_started_total", server, "CGI processes started.", cgi::getStartedCount);
+        metrics.counter("cgi_rejected_total", server, "CGI requests refused with 503.", cgi::getRejectedCount);
+        metrics.counter("cgi_timeouts_total", server, "CGI runs killed by cgi_timeout_ms.", cgi::getTimeoutCount);
+        for (Map.Entry<String, CGIWorkerPool> entry : workerPools.entrySet()) {
+            String labels = Metrics.labels("server", serverLabel, "route", entry.getKey());
+            CGIWorkerPool pool = entry.getValue();
+            metrics.gauge("cgi_workers", labels, "Persistent CGI workers running.", pool::getStartedCount);
+            metrics.gauge("cgi_workers_idle", labels, "Persistent CGI workers waiting for a request.", pool::getIdleCount);
+        }
+        metrics.gauge("sessions", server, "Live sessions.", sessions::getLiveCount);
+        metrics.counter("sessions_created_total", server, "Sessions created.", sessions::getCreatedCount);
+        metrics.counter("sessions_evicted_total", server, "Sessions evicted by session_max_count.", sessions::getEvictedCount);
+        metrics.counter("sessions_expired_total", server, "Sessions expired by their timeouts.", sessions::getExpiredCount);
+        StaticCache cache = getCache();
+        metrics.counter("static_cache_hits_total", server, "Static responses served from the cache.", cache::getHits);
+        metrics.counter("static_cache_misses_total", server, "Static cache lookups that found nothing.", cache::getMisses);
+        metrics.counter("static_cache_evictions_total", server, "Entries evicted from the static cache.", cache::getEvictions);
+        metrics.gauge("static_cache_bytes", server, "Bytes held by the static cache.", cache::getSize);
+        metrics.gauge("static_cache_entries", server, "Entries in the static cache.", cache::getEntryCount);
+    }
+
+    @Override
+    public long maxBodySize(HttpRequest request) {
+        return maxBodySize;
+    }
+
+    // Runs on the reactor as soon as the head is parsed: upload bodies go
+    // straight to disk, everything else is collected in memory.
+    @Override
+    public BodySink open(HttpRequest request, long contentLength) throws IOException, HttpParser.ParseException {
+        Path target = uploadTarget(request);
+        if (target != null) {
+            return new UploadSink(target);
+        }
+        return BodySink.memory(contentLength);
+    }
+
+    public StaticCache getCache() { return staticFiles.getCache(); }
+
     public HttpResponse handle(HttpRequest request) {
-        HttpResponse response = new HttpResponse();
-        String path = request.getPath();
-        
-        // Very basic routing logic:
-        // 1. Check if it matches a defined route (e.g. /cgi-bin)
-        // 2. Check if it's a file on disk
-        
-        Path rootPath = Paths.get(root).toAbsolutePath().normalize();
-        Path filePath = rootPath.resolve(path.startsWith("/") ? path.substring(1) : path).normalize();
-        
-        if (!filePath.startsWith(rootPath)) {
-            // Path traversal attempt?
-            return error(403, "Forbidden");
+        if (request.getPath().equals(metricsPath)) {
+            HttpResponse response = new HttpResponse();
+            response.setBody(metrics.render(), "text/plain; version=0.0.4; charset=utf-8");
+            return response;
         }
-        
-        File file = filePath.toFile();
-        
-        if (filePath.toString().endsWith(".py")) { // Simple check for CGI extension
-             return handleCGI(request, filePath);
+        long start = System.nanoTime();
+        RouteTable.Route route = routes.match(request.getPath());
+        Metrics.Histogram[] latency = route != null ? route.getLatency() : unmatchedLatency;
+        HttpResponse response;
+        try {
+            response = route(request, route);
+        } catch (RuntimeException e) {
+            latency[4].record(System.nanoTime() - start);
+            throw e;
+        }
+        int statusClass = response.getStatusCode() / 100 - 1;
+        latency[Math.max(0, Math.min(statusClass, 4))].record(System.nanoTime() - start);
+        return response;
+    }
+
+    private HttpResponse route(HttpRequest request, RouteTable.Route route) {
+        if (route == null) {
+            return error(404, "Not Found");
         }
+        if (!route.allows(request.getMethod())) {
+            HttpResponse response = error(405, "Method Not Allowed");
+            response.setHeader("Allow", route.getAllow());
+            return response;
+        }
+        return route.getHandler().handle(request, route);
+    }
 
-        if (path.equals("/session")) {
-            return handleSession(request);
+    // Picks the handler for a configured route once, at startup.
+    private RouteTable.Handler chooseHandler(RouteTable.Route route) {
+        route.setLatency(latency(route.getPrefix()));
+        Map<String, Object> settings = route.getConfig();
+        if ("session".equals(settings.get("handler"))) {
+            return (request, r) -> handleSession(request);
         }
-        
-        if (request.getMethod().equalsIgnoreCase("PUT") && path.startsWith("/upload")) {
-            return handleUpload(request);
+        if (settings.get("upload_path") != null) {
+            return this::handleUpload;
         }
+        if (settings.get("cgi_extension") != null) {
+            if (ConfigLoader.getInt(settings, "cgi_workers", 0) > 0) {
+                CGIWorkerPool pool = previous != null ? previous.workerPools.get(route.getPrefix()) : null;
+                if (pool == null || !pool.getSettings().equals(settings)) {
+                    pool = new CGIWorkerPool(route.getPrefix(), settings);
+                }
+                workerPools.put(route.getPrefix(), pool);
+            }
+            return this::handleCGI;
+        }
+        return this::handleStatic;
+    }
+
+    private HttpResponse handleStatic(HttpRequest request, RouteTable.Route route) {
+        String path = request.getPath();
+
+        // Only static files are ever cached, so a hit can skip the
+        // filesystem entirely. HEAD shares GET's entry; the reactor leaves
+        // the body out.
+        String method = request.getMethod();
+        String cacheKey = method.equals("GET") || method.equals("HEAD") ? cacheKey(path) : null;
+        if (cacheKey != null) {
+            HttpResponse cached = staticFiles.serveCached(request, cacheKey);
+            if (cached != null) {
+                return cached;
+            }
+        }
+
+        Path filePath = resolve(path);
+        if (filePath == null) {
+            // Path traversal attempt?
+            return error(403, "Forbidden");
+        }
+        File file = filePath.toFile();
 
         if (file.exists()) {
             if (file.isDirectory()) {
-                File indexFile = new File(file, "index.html");
-                if (indexFile.exists()) {
-                     return serveFile(indexFile);
+                String defaultFile = (String) route.getConfig().getOrDefault("default_file",
+                        config.getOrDefault("default_file", "index.html"));
+                File indexFile = new File(file, defaultFile);
+                if (indexFile.isFile()) {
+                     return serveFile(request, indexFile, null);
+                } else if (Boolean.TRUE.equals(route.getConfig().get("directory_listing"))) {
+                    return listDirectory(path, file);
                 } else {
-                    // Directory listing (if enabled)
-                    // Simplified: return 403 or implement listing
-                    return error(403, "Directory listing not implemented");
+                    return error(403, "Forbidden");
                 }
             } else {
-                return serveFile(file);
+                return serveFile(request, file, cacheKey);
             }
         } else {
             return error(404, "Not Found");
         }
     }
 
+    // The file under the document root for a request path, or null when the
+    // path would escape the root.
+    private Path resolve(String path) {
+        Path filePath = rootPath.resolve(path.startsWith("/") ? path.substring(1) : path).normalize();
+        return filePath.startsWith(rootPath) ? filePath : null;
+    }
+
+    private HttpResponse listDirectory(String path, File dir) {
+        String base = path.endsWith("/") ? path : path + "/";
+        String[] names = dir.list();
+        if (names == null) {
+            return error(500, "Internal Server Error");
+        }
+        Arrays.sort(names);
+        StringBuilder html = new StringBuilder();
+        html.append("<html><head><title>Index of ").append(escapeHtml(base)).append("</title></head><body>");
+        html.append("<h1>Index of ").append(escapeHtml(base)).append("</h1><ul>");
+        if (!base.equals("/")) {
+            html.append("<li><a href=\"../\">../</a></li>");
+        }
+        for (String name : names) {
+            String display = new File(dir, name).isDirectory() ? name + "/" : name;
+            html.append("<li><a href=\"").append(escapeHtml(base + display)).append("\">")
+                    .append(escapeHtml(display)).append("</a></li>");
+        }
+        html.append("</ul></body></html>");
+        HttpResponse response = new HttpResponse();
+        response.setBody(html.toString(), "text/html; charset=utf-8");
+        return response;
+    }
+
+    private static String escapeHtml(String text) {
+        StringBuilder out = new StringBuilder(text.length());
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            switch (c) {
+                case '<': out.append("&lt;"); break;
+                case '>': out.append("&gt;"); break;
+                case '&': out.append("&amp;"); break;
+                case '"': out.append("&quot;"); break;
+                default: out.append(c);
+            }
+        }
+        return out.toString();
+    }
+
     private HttpResponse handleSession(HttpRequest request) {
         String sessionId = request.getCookie("SESSIONID");
-        Map<String, Object> session = null;
+        SessionManager.Session session = null;
         boolean newSession = false;
 
         if (sessionId != null) {
-            session = SessionManager.getSession(sessionId);
+            session = sessions.getSession(sessionId);
         }
 
         if (session == null) {
-            sessionId = SessionManager.createSession();
-            session = SessionManager.getSession(sessionId);
+            session = sessions.createSession();
+            sessionId = session.getId();
             newSession = true;
         }
 
@@ -94,58 +348,116 @@ public class Router {
         return response;
     }
 
-    private HttpResponse handleUpload(HttpRequest request) {
-        String uploadPath = "./www/uploads"; // Should come from config
-        // Basic config lookup for upload path
-        // Simplified: hardcoded or extracted from config map
-        
-        File uploadDir = new File(uploadPath);
-        if (!uploadDir.exists()) uploadDir.mkdirs();
-        
-        String fileName = new File(request.getPath()).getName();
-        File file = new File(uploadDir, fileName);
-        
+    private HttpResponse handleUpload(HttpRequest request, RouteTable.Route route) {
+        String method = request.getMethod();
+        if (!method.equals("PUT") && !method.equals("POST")) {
+            return handleStatic(request, route);
+        }
+        Path target = request.getUploadedFile();
         try {
-            // Write body to file
-            // Note: Body in HttpRequest is String. For binary files this corrupts data!
-            // HttpRequest needs to support byte[] body.
-            // For now, only text upload works or we fix HttpRequest.
-            Files.write(file.toPath(), request.getBody().getBytes());
-            
+            if (target == null) {
+                // No body was sent, so nothing was streamed; store an empty file.
+                target = uploadTarget(request);
+                Files.createDirectories(target.getParent());
+                Files.write(target, new byte[0]);
+            }
             HttpResponse response = new HttpResponse();
             response.setStatus(201, "Created");
-            response.setBody("File uploaded: " + fileName, "text/plain");
+            response.setBody("File uploaded: " + target.getFileName(), "text/plain");
             return response;
+        } catch (HttpParser.ParseException e) {
+            return error(e.getStatus(), e.getReason());
         } catch (IOException e) {
              return error(500, "Upload failed");
         }
     }
 
-    private HttpResponse serveFile(File file) {
+    // The file a PUT or POST to a route with an upload_path is stored as,
+    // or null when the request is not an upload. A name the filesystem
+    // cannot hold, such as one with a NUL byte, is a bad request.
+    private Path uploadTarget(HttpRequest request) throws HttpParser.ParseException {
+        String method = request.getMethod();
+        if (!method.equals("PUT") && !method.equals("POST")) return null;
+        String path = request.getPath();
+        RouteTable.Route route = routes.match(path);
+        if (route == null || !route.allows(method)) return null;
+        Object uploadPath = route.getConfig().get("upload_path");
+        if (uploadPath == null) return null;
+
+        String name = path.substring(path.lastIndexOf('/') + 1);
+        if (path.length() <= route.getPrefix().length() || name.isEmpty() || name.equals(".") || name.equals("..")) {
+            name = "upload-" + System.currentTimeMillis();
+        }
         try {
-            byte[] content = Files.readAllBytes(file.toPath());
-            HttpResponse response = new HttpResponse();
-            response.setStatus(200, "OK");
-            String mimeType = "application/octet-stream";
-            String name = file.getName();
-            if (name.endsWith(".html")) mimeType = "text/html";
-            else if (name.endsWith(".css")) mimeType = "text/css";
-            else if (name.endsWith(".js")) mimeType = "application/javascript";
-            else if (name.endsWith(".png")) mimeType = "image/png";
-            else if (name.endsWith(".jpg")) mimeType = "image/jpeg";
-            
-            response.setBody(content, mimeType);
-            return response;
+            return Paths.get(uploadPath.toString()).toAbsolutePath().normalize().resolve(name);
+        } catch (InvalidPathException e) {
+            throw new HttpParser.ParseException(400, "Bad Request");
+        }
+    }
+
+    // The configured routes. Without any, everything is served from the
+    // root; the session demo stays at /session unless a route claims it.
+    private static Map<String, Object> routeConfig(Map<String, Object> config) {
+        Map<String, Object> routes = new LinkedHashMap<>();
+        Object configured = config.get("routes");
+        if (configured instanceof Map) {
+            routes.putAll((Map<String, Object>) configured);
+        } else {
+            routes.put("/", new HashMap<String, Object>());
+        }
+        boolean hasSession = false;
+        for (Object route : routes.values()) {
+            hasSession |= "session".equals(((Map<String, Object>) route).get("handler"));
+        }
+        if (!hasSession && !routes.containsKey("/session")) {
+            Map<String, Object> session = new HashMap<>();
+            session.put("handler", "session");
+            routes.put("/session", session);
+        }
+        return routes;
+    }
+
+    private HttpResponse serveFile(HttpRequest request, File file, String cacheKey) {
+        try {
+            return staticFiles.serve(request, file, cacheKey);
         } catch (IOException e) {
              return error(500, "Internal Server Error");
         }
     }
 
-    private HttpResponse handleCGI(HttpRequest request, Path scriptPath) {
-        return new CGIHandler().execute(request, scriptPath);
+    // Paths that are already in normal form are used as-is; anything with
+    // dot segments or empty segments is simply not cached.
+    private static String cacheKey(String path) {
+        if (!path.startsWith("/") || path.contains("/.") || path.contains("//")) {
+            return null;
+        }
+        return path;
+    }
+
+    // Scripts with the route's cgi_extension are executed; anything else
+    // under the route is served as a static file.
+    private HttpResponse handleCGI(HttpRequest request, RouteTable.Route route) {
+        Map<String, Object> settings = route.getConfig();
+        if (!request.getPath().endsWith(settings.get("cgi_extension").toString())) {
+            return handleStatic(request, route);
+        }
+        Path scriptPath = resolve(request.getPath());
+        if (scriptPath == null) {
+            return error(403, "Forbidden");
+        }
+        if (!Files.isRegularFile(scriptPath)) {
+            return error(404, "Not Found");
+        }
+        long timeoutMs = ConfigLoader.getInt(settings, "cgi_timeout_ms", 30000);
+        CGIWorkerPool pool = workerPools.get(route.getPrefix());
+        HttpResponse response = pool != null
+                ? cgi.execute(request, scriptPath, pool, timeoutMs)
+                : cgi.execute(request, scriptPath, timeoutMs);
+        compression.apply(request, response);
+        return response;
     }
 
-    private HttpResponse error(int code, String message) {
+    public HttpResponse error(int code, String message) {
         HttpResponse response = new HttpResponse();
         response.setStatus(code, message);
         response.setBody("<html><h1>" + code + " " + message + "</h1></html>", "text/html");
@@ -1,128 +1,392 @@
-package com.localserver;
-
-import java.io.IOException;
-import java.net.InetSocketAddress;
-import java.nio.ByteBuffer;
-import java.nio.channels.SelectionKey;
-import java.nio.channels.Selector;
-import java.nio.channels.ServerSocketChannel;
-import java.nio.channels.SocketChannel;
-import java.util.Iterator;
-import java.util.List;
-import java.util.ArrayList;
-import java.util.Map;
-import java.util.Set;
-
-public class Server {
-    private final Map<String, Object> config;
-    private Selector selector;
-    private Router router;
-
-    public Server(Map<String, Object> config) {
-        this.config = config;
-        // Assuming single server config for now or taking the first one for the router
-        // In a multi-server setup, we'd map ports to routers
-        List<Object> servers = (List<Object>) config.get("servers");
-        if (servers != null && !servers.isEmpty()) {
-             this.router = new Router((Map<String, Object>) servers.get(0));
-        } else {
-             this.router = new Router(config); // Fallback
-        }
-    }
-
-    public void start() throws IOException {
-        selector = Selector.open();
-        // Setup servers based on config
-        List<Object> servers = (List<Object>) config.get("servers");
-        if (servers != null) {
-            for (Object s : servers) {
-                Map<String, Object> serverConfig = (Map<String, Object>) s;
-                String host = (String) serverConfig.getOrDefault("host", "localhost");
-                
-                Object portObj = serverConfig.getOrDefault("port", 8080);
-                int port;
-                if (portObj instanceof Number) {
-                    port = ((Number) portObj).intValue();
-                } else {
-                    port = Integer.parseInt(portObj.toString());
-                }
-                
-                ServerSocketChannel serverChannel = ServerSocketChannel.open();
-                serverChannel.bind(new InetSocketAddress(host, port));
-                serverChannel.configureBlocking(false);
-                serverChannel.register(selector, SelectionKey.OP_ACCEPT);
-                System.out.println("Listening on " + host + ":" + port);
-            }
-        }
-
-        System.out.println("Server started.");
-
-        while (true) {
-            try {
-                if (selector.select() == 0) continue;
-                
-                Set<SelectionKey> selectedKeys = selector.selectedKeys();
-                Iterator<SelectionKey> iter = selectedKeys.iterator();
-
-                while (iter.hasNext()) {
-                    SelectionKey key = iter.next();
-                    iter.remove();
-
-                    if (!key.isValid()) continue;
-
-                    try {
-                        if (key.isAcceptable()) {
-                            handleAccept(key);
-                        } else if (key.isReadable()) {
-                            handleRead(key);
-                        }
-                    } catch (IOException e) {
-                        System.err.println("Error handling key: " + e.getMessage());
-                        key.cancel();
-                        try {
-                            key.channel().close();
-                        } catch (IOException ex) {
-                            // ignore
-                        }
-                    }
-                }
-            } catch (IOException e) {
-                System.err.println("Selector error: " + e.getMessage());
-            }
-        }
-    }
-
-    private void handleAccept(SelectionKey key) throws IOException {
-        ServerSocketChannel serverChannel = (ServerSocketChannel) key.channel();
-        SocketChannel clientChannel = serverChannel.accept();
-        clientChannel.configureBlocking(false);
-        clientChannel.register(selector, SelectionKey.OP_READ);
-        System.out.println("Accepted connection from " + clientChannel.getRemoteAddress());
-    }
-
-    private void handleRead(SelectionKey key) throws IOException {
-        SocketChannel clientChannel = (SocketChannel) key.channel();
-        ByteBuffer buffer = ByteBuffer.allocate(8192);
-        int bytesRead = clientChannel.read(buffer);
-
-        if (bytesRead == -1) {
-            clientChannel.close();
-            return;
-        }
-
-        if (bytesRead > 0) {
-            buffer.flip();
-            String rawRequest = new String(buffer.array(), 0, bytesRead);
-            // System.out.println("Received: " + rawRequest); // Debug logging
-
-            HttpRequest request = new HttpRequest(rawRequest);
-            HttpResponse response = router.handle(request);
-            
-            ByteBuffer respBuffer = ByteBuffer.wrap(response.toBytes());
-            while(respBuffer.hasRemaining()) {
-                clientChannel.write(respBuffer);
-            }
-            clientChannel.close(); // Close for now (non-keep-alive)
-        }
-    }
-}
+package com.localserver;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class Server {
+    private final Map<String, Object> config;
+    private Selector selector;
+    private Reactor[] reactors;
+    private final boolean leastLoaded;
+    private int nextReactor;
+    private final Metrics metrics = new Metrics();
+    private AccessLog accessLog;
+    private volatile long accepted;
+    // At max_connections the listeners stop asking for OP_ACCEPT; new
+    // clients wait in the kernel's backlog until a connection closes.
+    private final int maxConnections;
+    private final AtomicInteger open = new AtomicInteger();
+    private volatile boolean acceptPaused;
+    private volatile long acceptPauses;
+    // Acceptor thread only. Each key's attachment is its Listener, so
+    // accepted connections know which servers they can reach.
+    private final Map<String, Listener> listeners = new LinkedHashMap<>();
+    // Work handed to the acceptor thread, such as applying a reload.
+    private final Queue<Runnable> acceptorTasks = new ConcurrentLinkedQueue<>();
+    private final String configPath;
+    // The routers in use by id, and the configuration they came from;
+    // guarded by reload().
+    private Map<String, Router> routers;
+    private Map<String, Object> currentConfig;
+    private volatile long reloads;
+    private volatile long reloadFailures;
+
+    // The servers of one configuration grouped by listening address.
+    private static class Layout {
+        final Map<String, VirtualHosts> hosts = new LinkedHashMap<>();
+        final Map<String, InetSocketAddress> addresses = new HashMap<>();
+        final Map<String, Router> routers = new LinkedHashMap<>();
+    }
+
+    public Server(Map<String, Object> config) {
+        this(config, null);
+    }
+
+    // With a config path, the file is watched and edits are applied while
+    // the server runs.
+    public Server(Map<String, Object> config, String configPath) {
+        this.config = config;
+        this.configPath = configPath;
+        this.leastLoaded = "least_loaded".equals(config.getOrDefault("reactor_balance", "round_robin"));
+        this.maxConnections = ConfigLoader.getInt(config, "max_connections", 10000);
+    }
+
+    public void start() throws IOException {
+        selector = Selector.open();
+        Layout layout = layout(config, Map.of());
+        for (Map.Entry<String, VirtualHosts> entry : layout.hosts.entrySet()) {
+            ServerSocketChannel serverChannel = bind(layout.addresses.get(entry.getKey()));
+            addListener(new Listener(entry.getKey(), serverChannel, entry.getValue()));
+        }
+        routers = layout.routers;
+        currentConfig = config;
+
+        int reactorThreads = ConfigLoader.getInt(config, "reactor_threads", 0);
+        if (reactorThreads <= 0) {
+            reactorThreads = Runtime.getRuntime().availableProcessors();
+        }
+        Dispatcher dispatcher = new Dispatcher(config);
+        accessLog = new AccessLog(config);
+        reactors = new Reactor[reactorThreads];
+        for (int i = 0; i < reactorThreads; i++) {
+            reactors[i] = new Reactor("reactor-" + i, config, dispatcher, metrics, accessLog, this::connectionClosed);
+            Thread thread = new Thread(reactors[i], reactors[i].getName());
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        registerMetrics();
+        System.out.println("Server started with " + reactorThreads + " reactor thread(s).");
+        if (configPath != null) {
+            new ConfigWatcher(Paths.get(configPath), this::reload).start();
+        }
+
+        // This thread only accepts; connections are served by the reactors.
+        while (true) {
+            try {
+                int ready = selector.select();
+                Runnable task;
+                while ((task = acceptorTasks.poll()) != null) {
+                    task.run();
+                }
+                if (acceptPaused && open.get() < maxConnections) {
+                    resumeAccepting();
+                }
+                if (ready == 0) continue;
+
+                Set<SelectionKey> selectedKeys = selector.selectedKeys();
+                Iterator<SelectionKey> iter = selectedKeys.iterator();
+
+                while (iter.hasNext()) {
+                    SelectionKey key = iter.next();
+                    iter.remove();
+
+                    if (!key.isValid()) continue;
+
+                    try {
+                        if (key.isAcceptable()) {
+                            handleAccept(key);
+                        }
+                    } catch (IOException e) {
+                        System.err.println("Error accepting connection: " + e.getMessage());
+                    }
+                }
+            } catch (IOException e) {
+                System.err.println("Selector error: " + e.getMessage());
+            }
+        }
+    }
+
+    // Every entry in "servers" gets its own Router. Entries that share a
+    // host:port are bound once and told apart by server_name; the first
+    // one on an address answers requests for unknown names. A router is
+    // identified by its address and names; one that had a predecessor
+    // under the same id takes over that router's caches and workers.
+    private Layout layout(Map<String, Object> config, Map<String, Router> previous) {
+        List<Object> servers = (List<Object>) config.get("servers");
+        if (servers == null) {
+            servers = List.of(config);
+        }
+        Layout layout = new Layout();
+        try {
+            for (Object s : servers) {
+                Map<String, Object> serverConfig = (Map<String, Object>) s;
+                String host = (String) serverConfig.getOrDefault("host", "localhost");
+                int port = ConfigLoader.getInt(serverConfig, "port", 8080);
+                String address = host + ":" + port;
+                String id = address + " " + String.join(" ", VirtualHosts.serverNames(serverConfig));
+                for (int n = 2; layout.routers.containsKey(id); n++) {
+                    id = address + " " + String.join(" ", VirtualHosts.serverNames(serverConfig)) + "#" + n;
+                }
+                Router router = new Router(serverConfig, metrics, previous.get(id));
+                layout.routers.put(id, router);
+                VirtualHosts hosts = layout.hosts.get(address);
+                if (hosts == null) {
+                    hosts = new VirtualHosts(router);
+                    layout.hosts.put(address, hosts);
+                    layout.addresses.put(address, new InetSocketAddress(host, port));
+                }
+                hosts.add(VirtualHosts.serverNames(serverConfig), router);
+            }
+        } catch (RuntimeException e) {
+            // Close what was built so far without touching anything it
+            // took over from the running routers.
+            Set<Object> inUse = resources(previous);
+            for (Router router : layout.routers.values()) {
+                router.close(inUse);
+            }
+            throw e;
+        }
+        return layout;
+    }
+
+    private static Set<Object> resources(Map<String, Router> routers) {
+        Set<Object> resources = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (Router router : routers.values()) {
+            router.collectResources(resources);
+        }
+        return resources;
+    }
+
+    private static ServerSocketChannel bind(InetSocketAddress address) throws IOException {
+        ServerSocketChannel serverChannel = ServerSocketChannel.open();
+        try {
+            serverChannel.bind(address);
+            serverChannel.configureBlocking(false);
+        } catch (IOException e) {
+            serverChannel.close();
+            throw e;
+        }
+        return serverChannel;
+    }
+
+    // Acceptor thread only.
+    private void addListener(Listener listener) throws IOException {
+        int ops = acceptPaused ? 0 : SelectionKey.OP_ACCEPT;
+        listener.setKey(listener.getChannel().register(selector, ops, listener));
+        listeners.put(listener.getAddress(), listener);
+        System.out.println("Listening on " + listener.getAddress());
+    }
+
+    // Applies a new configuration without a restart. The routers are built
+    // and new addresses bound on the calling thread, and nothing changes if
+    // either fails. The acceptor thread then swaps each listener's virtual
+    // hosts in one write, opens and closes listeners, and retires the old
+    // routers. Connections keep their socket and switch to the new routers
+    // at their next request; requests already dispatched finish on the old
+    // ones, which close what they alone own afterwards. Settings outside
+    // "servers" that are only read at startup are reported, not applied.
+    public synchronized void reload(Map<String, Object> newConfig) {
+        Layout layout;
+        try {
+            layout = layout(newConfig, routers);
+        } catch (RuntimeException e) {
+            reloadFailures++;
+            System.err.println("Config reload failed, keeping the current configuration: " + e);
+            return;
+        }
+
+        Map<String, ServerSocketChannel> bound = new HashMap<>();
+        try {
+            for (Map.Entry<String, InetSocketAddress> entry : layout.addresses.entrySet()) {
+                if (!addresses(routers).contains(entry.getKey())) {
+                    bound.put(entry.getKey(), bind(entry.getValue()));
+                }
+            }
+        } catch (IOException e) {
+            for (ServerSocketChannel channel : bound.values()) {
+                try {
+                    channel.close();
+                } catch (IOException ex) {
+                    // ignore
+                }
+            }
+            Set<Object> inUse = resources(routers);
+            for (Router router : layout.routers.values()) {
+                router.close(inUse);
+            }
+            reloadFailures++;
+            System.err.println("Config reload failed, could not bind: " + e.getMessage());
+            return;
+        }
+
+        Map<String, Router> retired = routers;
+        routers = layout.routers;
+        acceptorTasks.add(() -> {
+            for (Map.Entry<String, VirtualHosts> entry : layout.hosts.entrySet()) {
+                Listener listener = listeners.get(entry.getKey());
+                if (listener != null) {
+                    listener.setHosts(entry.getValue());
+                    continue;
+                }
+                try {
+                    addListener(new Listener(entry.getKey(), bound.get(entry.getKey()), entry.getValue()));
+                } catch (IOException e) {
+                    System.err.println("Could not listen on " + entry.getKey() + ": " + e.getMessage());
+                }
+            }
+            Iterator<Listener> iter = listeners.values().iterator();
+            while (iter.hasNext()) {
+                Listener listener = iter.next();
+                if (!layout.hosts.containsKey(listener.getAddress())) {
+                    listener.close();
+                    iter.remove();
+                    System.out.println("Stopped listening on " + listener.getAddress());
+                }
+            }
+            Set<Object> inUse = resources(layout.routers);
+            for (Router router : retired.values()) {
+                router.retire(inUse);
+            }
+        });
+        selector.wakeup();
+
+        if (newConfig.containsKey("servers")) {
+            for (String key : union(currentConfig.keySet(), newConfig.keySet())) {
+                if (!key.equals("servers") && !Objects.equals(currentConfig.get(key), newConfig.get(key))) {
+                    System.err.println("Config reload: " + key + " only takes effect after a restart.");
+                }
+            }
+        }
+        currentConfig = newConfig;
+        reloads++;
+        System.out.println("Configuration reloaded: " + layout.routers.size() + " server(s) on "
+                + layout.hosts.size() + " address(es).");
+    }
+
+    private static Set<String> addresses(Map<String, Router> routers) {
+        Set<String> addresses = new HashSet<>();
+        for (String id : routers.keySet()) {
+            addresses.add(id.substring(0, id.indexOf(' ')));
+        }
+        return addresses;
+    }
+
+    private static Set<String> union(Set<String> a, Set<String> b) {
+        Set<String> keys = new LinkedHashSet<>(a);
+        keys.addAll(b);
+        return keys;
+    }
+
+    private void handleAccept(SelectionKey key) throws IOException {
+        ServerSocketChannel serverChannel = (ServerSocketChannel) key.channel();
+        if (acceptPaused) return;
+        SocketChannel clientChannel = serverChannel.accept();
+        if (clientChannel == null) return;
+        accepted++;
+        if (open.incrementAndGet() >= maxConnections) {
+            pauseAccepting();
+        }
+        // Responses are already coalesced into gathering writes; a head
+        // followed by a file transfer must not wait on Nagle for an ACK.
+        clientChannel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        nextReactor().register(clientChannel, (Listener) key.attachment());
+    }
+
+    private void pauseAccepting() {
+        acceptPaused = true;
+        acceptPauses++;
+        for (Listener listener : listeners.values()) {
+            listener.getKey().interestOps(0);
+        }
+        // A connection may have closed before the flag was visible to it.
+        if (open.get() < maxConnections) {
+            resumeAccepting();
+        }
+    }
+
+    private void resumeAccepting() {
+        acceptPaused = false;
+        for (Listener listener : listeners.values()) {
+            listener.getKey().interestOps(SelectionKey.OP_ACCEPT);
+        }
+    }
+
+    // Called by a reactor thread for every connection it closes.
+    private void connectionClosed() {
+        if (open.decrementAndGet() < maxConnections && acceptPaused) {
+            selector.wakeup();
+        }
+    }
+
+    private void registerMetrics() {
+        metrics.counter("connections_accepted_total", "", "Connections accepted.", () -> accepted);
+        metrics.gauge("connections_open", "", "Open connections across all reactors.", open::get);
+        metrics.gauge("accept_paused", "", "1 while accepting is paused at max_connections.", () -> acceptPaused ? 1 : 0);
+        metrics.counter("accept_pauses_total", "", "Times accepting was paused at max_connections.", () -> acceptPauses);
+        metrics.counter("config_reloads_total", "", "Configuration reloads applied.", () -> reloads);
+        metrics.counter("config_reload_failures_total", "", "Configuration reloads rejected.", () -> reloadFailures);
+        metrics.counter("access_log_records_total", "", "Records written to the access log.", accessLog::getWrittenCount);
+        metrics.counter("access_log_dropped_total", "", "Access log records dropped because the buffer was full.", accessLog::getDroppedCount);
+        for (Reactor reactor : reactors) {
+            String labels = Metrics.labels("reactor", reactor.getName());
+            BufferPool pool = reactor.getBufferPool();
+            metrics.gauge("connections_active", labels, "Open connections.", reactor::getConnectionCount);
+            metrics.counter("bytes_received_total", labels, "Bytes read from clients.", reactor::getBytesReceived);
+            metrics.counter("bytes_sent_total", labels, "Bytes written to clients.", reactor::getBytesSent);
+            metrics.gauge("buffer_pool_bytes", labels, "Direct memory allocated by the buffer pool.", pool::getSlabBytes);
+            metrics.counter("buffer_pool_unpooled_total", labels, "Buffers allocated outside the pool.", pool::getUnpooledCount);
+            metrics.counter("buffer_pool_leaks_total", labels, "Buffers reported as probable leaks.", pool::getLeakCount);
+            for (int i = 0; i < BufferPool.getSizeClasses(); i++) {
+                int sizeClass = i;
+                String sized = Metrics.labels("reactor", reactor.getName(), "size", String.valueOf(BufferPool.getChunkSize(i)));
+                metrics.gauge("buffer_pool_lent", sized, "Pooled buffers currently lent out.", () -> pool.getLentCount(sizeClass));
+            }
+        }
+    }
+
+    private Reactor nextReactor() {
+        if (leastLoaded) {
+            Reactor best = reactors[0];
+            for (int i = 1; i < reactors.length; i++) {
+                if (reactors[i].getConnectionCount() < best.getConnectionCount()) {
+                    best = reactors[i];
+                }
+            }
+            return best;
+        }
+        Reactor reactor = reactors[nextReactor];
+        nextReactor = (nextReactor + 1) % reactors.length;
+        return reactor;
+    }
+}
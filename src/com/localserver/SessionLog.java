@@ -0,0 +1,427 @@
+package com.localserver;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+import java.util.zip.CRC32;
+
+// On-disk backend for SessionManager ("session_store"). Every session
+// change is appended to a log file through a MappedByteBuffer, which is
+// only a memory copy on the request path; a background thread forces the
+// mapping to disk every session_log_flush_ms, so one fsync commits a whole
+// batch of changes. Once session_log_compact_bytes have been logged the
+// log is rotated and the live table is written to a snapshot, after which
+// older logs are deleted. A restart reads the snapshot and the remaining
+// logs front to back.
+//
+// Records are framed as length, CRC32 and payload; replay stops at the
+// first empty or damaged frame, which is where a crash cut the log off.
+// Replaying a record on top of state that already contains it is
+// harmless, so the snapshot may be taken while new records are logged.
+// Callers apply each change in memory before logging it, so a record in
+// a log that compaction deletes is always covered by the snapshot.
+public class SessionLog {
+    private static final int SNAPSHOT_MAGIC = 0x53455353; // "SESS"
+    private static final String SNAPSHOT = "sessions.snapshot";
+
+    private static final byte CREATE = 1;
+    private static final byte SET = 2;
+    private static final byte UNSET = 3;
+    private static final byte DELETE = 4;
+
+    private static final byte INT = 'I';
+    private static final byte LONG = 'L';
+    private static final byte DOUBLE = 'D';
+    private static final byte BOOLEAN = 'B';
+    private static final byte STRING = 'S';
+
+    // A session as rebuilt from disk.
+    public static class Recovered {
+        public final String id;
+        public final long created;
+        public final Map<String, Object> attributes = new LinkedHashMap<>();
+
+        Recovered(String id, long created) {
+            this.id = id;
+            this.created = created;
+        }
+    }
+
+    private final Path dir;
+    private final int segmentBytes;
+    private final long compactBytes;
+    private final long flushMs;
+    private Supplier<List<SessionManager.Session>> live;
+
+    private long generation;
+    private FileChannel channel;
+    private MappedByteBuffer log;
+    private boolean dirty;
+    private final List<MappedByteBuffer> retired = new ArrayList<>();
+    private long loggedSinceSnapshot;
+    private Thread flusher;
+    private boolean closed;
+
+    public SessionLog(Map<String, Object> config) {
+        this.dir = Paths.get(config.get("session_store").toString());
+        this.segmentBytes = ConfigLoader.getInt(config, "session_log_segment_bytes", 16 * 1024 * 1024);
+        this.compactBytes = ConfigLoader.getInt(config, "session_log_compact_bytes", 8 * 1024 * 1024);
+        this.flushMs = ConfigLoader.getInt(config, "session_log_flush_ms", 100);
+    }
+
+    // Rebuilds the sessions stored in dir, then starts a fresh log and
+    // snapshot so the next restart only reads what changed after this one.
+    public List<Recovered> open(Supplier<List<SessionManager.Session>> live) throws IOException {
+        this.live = live;
+        Files.createDirectories(dir);
+        Map<String, Recovered> sessions = new LinkedHashMap<>();
+        long snapshotGeneration = readSnapshot(sessions);
+        List<Long> logs = logGenerations();
+        for (long gen : logs) {
+            if (gen >= snapshotGeneration) {
+                replay(Files.readAllBytes(logPath(gen)), 0, sessions);
+            }
+        }
+        long last = logs.isEmpty() ? snapshotGeneration : Math.max(snapshotGeneration, logs.get(logs.size() - 1));
+        List<Recovered> recovered = new ArrayList<>(sessions.values());
+
+        synchronized (this) {
+            generation = last;
+            rotate();
+        }
+        writeSnapshot(generation, recovered);
+
+        flusher = new Thread(this::flushLoop, "session-log");
+        flusher.setDaemon(true);
+        flusher.start();
+        return recovered;
+    }
+
+    // Forces what has been logged and stops logging; later changes are
+    // ignored. A compaction in progress is allowed to finish, so the store
+    // can be opened again as soon as this returns. The flusher is woken
+    // rather than interrupted, which would close the channel of a snapshot
+    // it is writing.
+    public void close() {
+        synchronized (this) {
+            if (closed) return;
+            closed = true;
+            notifyAll();
+            dirty = false;
+            if (log != null) {
+                for (MappedByteBuffer mapping : retired) {
+                    mapping.force();
+                }
+                retired.clear();
+                log.force();
+                log = null;
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+        if (flusher != null) {
+            try {
+                flusher.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    public void create(String id, long created) {
+        append(record(CREATE, id, null, null, created));
+    }
+
+    public void set(String id, String key, Object value) {
+        byte[] payload = record(SET, id, key, value, 0);
+        // A value that cannot be stored must not leave an older one behind.
+        append(payload != null ? payload : record(UNSET, id, key, null, 0));
+    }
+
+    public void unset(String id, String key) {
+        append(record(UNSET, id, key, null, 0));
+    }
+
+    public void delete(String id) {
+        append(record(DELETE, id, null, null, 0));
+    }
+
+    private synchronized void append(byte[] payload) {
+        if (payload == null || log == null) return;
+        int size = 8 + payload.length;
+        if (size + 4 > segmentBytes) {
+            System.err.println("Session record of " + payload.length + " bytes is too large to log");
+            return;
+        }
+        // Leave room for the zero length that marks the end of the log.
+        if (log.remaining() < size + 4) {
+            try {
+                rotate();
+            } catch (IOException e) {
+                System.err.println("Session log rotation failed: " + e.getMessage());
+                log = null;
+                return;
+            }
+        }
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        log.putInt(payload.length).putInt((int) crc.getValue()).put(payload);
+        dirty = true;
+        loggedSinceSnapshot += size;
+    }
+
+    // Starts the next log file. The previous mapping stays valid after its
+    // channel is closed and is forced by the flusher, not by the caller.
+    private void rotate() throws IOException {
+        if (log != null) {
+            if (dirty) retired.add(log);
+            channel.close();
+        }
+        generation++;
+        channel = FileChannel.open(logPath(generation), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        log = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes);
+        dirty = false;
+    }
+
+    private void flushLoop() {
+        while (true) {
+            List<MappedByteBuffer> toForce = new ArrayList<>();
+            boolean compact;
+            synchronized (this) {
+                try {
+                    wait(flushMs);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (closed) return;
+                toForce.addAll(retired);
+                retired.clear();
+                if (dirty) toForce.add(log);
+                dirty = false;
+                compact = loggedSinceSnapshot >= compactBytes;
+            }
+            for (MappedByteBuffer mapping : toForce) {
+                mapping.force();
+            }
+            if (compact) {
+                compact();
+            }
+        }
+    }
+
+    // The snapshot reflects at least everything logged before the rotation,
+    // so logs older than the new generation are no longer needed.
+    private void compact() {
+        long snapshotGeneration;
+        synchronized (this) {
+            if (closed) return;
+            try {
+                rotate();
+            } catch (IOException e) {
+                System.err.println("Session log rotation failed: " + e.getMessage());
+                return;
+            }
+            snapshotGeneration = generation;
+            loggedSinceSnapshot = 0;
+        }
+        List<Recovered> sessions = new ArrayList<>();
+        for (SessionManager.Session session : live.get()) {
+            Recovered copy = new Recovered(session.getId(), session.getCreated());
+            copy.attributes.putAll(session.getAttributes());
+            sessions.add(copy);
+        }
+        try {
+            writeSnapshot(snapshotGeneration, sessions);
+        } catch (IOException e) {
+            System.err.println("Session snapshot failed: " + e.getMessage());
+        }
+    }
+
+    private void writeSnapshot(long snapshotGeneration, List<Recovered> sessions) throws IOException {
+        Path tmp = dir.resolve(SNAPSHOT + ".tmp");
+        try (FileChannel file = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(file), 65536))) {
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeLong(snapshotGeneration);
+            for (Recovered session : sessions) {
+                writeFrame(out, record(CREATE, session.id, null, null, session.created));
+                for (Map.Entry<String, Object> attribute : session.attributes.entrySet()) {
+                    writeFrame(out, record(SET, session.id, attribute.getKey(), attribute.getValue(), 0));
+                }
+            }
+            out.writeInt(0);
+            out.flush();
+            file.force(true);
+        }
+        Files.move(tmp, dir.resolve(SNAPSHOT), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        for (long gen : logGenerations()) {
+            if (gen < snapshotGeneration) {
+                Files.deleteIfExists(logPath(gen));
+            }
+        }
+    }
+
+    private static void writeFrame(DataOutputStream out, byte[] payload) throws IOException {
+        if (payload == null) return;
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        out.writeInt(payload.length);
+        out.writeInt((int) crc.getValue());
+        out.write(payload);
+    }
+
+    private long readSnapshot(Map<String, Recovered> sessions) throws IOException {
+        Path snapshot = dir.resolve(SNAPSHOT);
+        if (!Files.exists(snapshot)) return 0;
+        byte[] data = Files.readAllBytes(snapshot);
+        ByteBuffer head = ByteBuffer.wrap(data);
+        if (data.length < 12 || head.getInt() != SNAPSHOT_MAGIC) {
+            throw new IOException("Not a session snapshot: " + snapshot);
+        }
+        long snapshotGeneration = head.getLong();
+        replay(data, 12, sessions);
+        return snapshotGeneration;
+    }
+
+    private static void replay(byte[] data, int offset, Map<String, Recovered> sessions) {
+        ByteBuffer buf = ByteBuffer.wrap(data, offset, data.length - offset);
+        while (buf.remaining() >= 8) {
+            int length = buf.getInt();
+            int checksum = buf.getInt();
+            if (length <= 0 || length > buf.remaining()) return;
+            CRC32 crc = new CRC32();
+            crc.update(data, buf.position(), length);
+            if ((int) crc.getValue() != checksum) return;
+            try {
+                apply(new DataInputStream(new ByteArrayInputStream(data, buf.position(), length)), sessions);
+            } catch (IOException e) {
+                return;
+            }
+            buf.position(buf.position() + length);
+        }
+    }
+
+    private static void apply(DataInputStream in, Map<String, Recovered> sessions) throws IOException {
+        byte op = in.readByte();
+        String id = in.readUTF();
+        switch (op) {
+            case CREATE:
+                sessions.putIfAbsent(id, new Recovered(id, in.readLong()));
+                break;
+            case SET: {
+                String key = in.readUTF();
+                Object value = readValue(in);
+                Recovered session = sessions.get(id);
+                if (session != null) session.attributes.put(key, value);
+                break;
+            }
+            case UNSET: {
+                String key = in.readUTF();
+                Recovered session = sessions.get(id);
+                if (session != null) session.attributes.remove(key);
+                break;
+            }
+            case DELETE:
+                sessions.remove(id);
+                break;
+            default:
+                throw new IOException("Unknown session record " + op);
+        }
+    }
+
+    // Encodes one change, or returns null for a value type that cannot be
+    // stored; such attributes only live in memory.
+    private static byte[] record(byte op, String id, String key, Object value, long created) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeByte(op);
+            out.writeUTF(id);
+            if (op == CREATE) {
+                out.writeLong(created);
+            } else if (op == SET || op == UNSET) {
+                out.writeUTF(key);
+            }
+            if (op == SET) {
+                if (value instanceof Integer) {
+                    out.writeByte(INT);
+                    out.writeInt((Integer) value);
+                } else if (value instanceof Long) {
+                    out.writeByte(LONG);
+                    out.writeLong((Long) value);
+                } else if (value instanceof Double) {
+                    out.writeByte(DOUBLE);
+                    out.writeDouble((Double) value);
+                } else if (value instanceof Boolean) {
+                    out.writeByte(BOOLEAN);
+                    out.writeBoolean((Boolean) value);
+                } else if (value instanceof String) {
+                    out.writeByte(STRING);
+                    out.writeUTF((String) value);
+                } else {
+                    return null;
+                }
+            }
+        } catch (IOException e) {
+            return null; // a string over 64 KiB
+        }
+        return bytes.toByteArray();
+    }
+
+    private static Object readValue(DataInputStream in) throws IOException {
+        byte type = in.readByte();
+        switch (type) {
+            case INT: return in.readInt();
+            case LONG: return in.readLong();
+            case DOUBLE: return in.readDouble();
+            case BOOLEAN: return in.readBoolean();
+            case STRING: return in.readUTF();
+            default: throw new EOFException("Unknown value type " + type);
+        }
+    }
+
+    private Path logPath(long gen) {
+        return dir.resolve(String.format("sessions-%016x.log", gen));
+    }
+
+    private List<Long> logGenerations() throws IOException {
+        List<Long> gens = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "sessions-*.log")) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                try {
+                    gens.add(Long.parseLong(name.substring(9, name.length() - 4), 16));
+                } catch (NumberFormatException e) {
+                    // not one of ours
+                }
+            }
+        }
+        Collections.sort(gens);
+        return gens;
+    }
+}
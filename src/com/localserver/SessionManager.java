@@ -1,23 +1,259 @@
 package com.localserver;
 
-import java.util.HashMap;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 
+// Session store shared by all worker threads. Sessions are spread over
+// lock-striped, access-ordered maps, so lookups on different stripes never
+// contend and each stripe evicts its least recently used session once the
+// store holds session_max_count sessions. Sessions expire after
+// session_idle_timeout_ms without a request or session_max_age_ms after
+// creation, whichever comes first; a TimerWheel swept once a second finds
+// them. With session_store set, every change is also written to a
+// SessionLog and the table is rebuilt from it on startup.
 public class SessionManager {
-    private static final Map<String, Map<String, Object>> sessions = new HashMap<>();
+    private static final int STRIPES = 16;
 
-    public static String createSession() {
-        String sessionId = UUID.randomUUID().toString();
-        sessions.put(sessionId, new HashMap<>());
-        return sessionId;
+    public static class Session {
+        private final String id;
+        private final long created;
+        private volatile long lastAccess;
+        private final Map<String, Object> attributes = new ConcurrentHashMap<>();
+        private TimerWheel.Timeout<Session> timeout; // guarded by the wheel
+        private final SessionLog log;
+
+        Session(String id, long created, long now, SessionLog log) {
+            this.id = id;
+            this.created = created;
+            this.lastAccess = now;
+            this.log = log;
+        }
+
+        public String getId() { return id; }
+        public long getCreated() { return created; }
+        public long getLastAccess() { return lastAccess; }
+
+        public Object get(String key) { return attributes.get(key); }
+        public Object getOrDefault(String key, Object defaultValue) { return attributes.getOrDefault(key, defaultValue); }
+        Map<String, Object> getAttributes() { return attributes; }
+
+        public void put(String key, Object value) {
+            attributes.put(key, value);
+            if (log != null) log.set(id, key, value);
+        }
+
+        public void remove(String key) {
+            attributes.remove(key);
+            if (log != null) log.unset(id, key);
+        }
+    }
+
+    private final long idleTimeoutMs;
+    private final long maxAgeMs;
+    private final int maxPerStripe;
+    private final Map<String, Session>[] stripes;
+    private final TimerWheel<Session> wheel;
+    private final AtomicInteger live = new AtomicInteger();
+    private final LongAdder created = new LongAdder();
+    private final LongAdder evicted = new LongAdder();
+    private final LongAdder expired = new LongAdder();
+    private final SessionLog log;
+    private final Thread sweeper;
+
+    public SessionManager(Map<String, Object> config) {
+        this.idleTimeoutMs = ConfigLoader.getInt(config, "session_idle_timeout_ms", 30 * 60 * 1000);
+        this.maxAgeMs = ConfigLoader.getInt(config, "session_max_age_ms", 24 * 60 * 60 * 1000);
+        int maxSessions = ConfigLoader.getInt(config, "session_max_count", 100000);
+        this.maxPerStripe = Math.max(1, maxSessions / STRIPES);
+        // There is no generic array creation; every slot gets a
+        // Map<String, Session> right below, so the cast cannot fail.
+        @SuppressWarnings("unchecked")
+        Map<String, Session>[] maps = (Map<String, Session>[]) new Map<?, ?>[STRIPES];
+        this.stripes = maps;
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new LinkedHashMap<>(16, 0.75f, true);
+        }
+        this.wheel = new TimerWheel<>(1000, 512, System.currentTimeMillis());
+        this.log = config.get("session_store") != null ? openLog(config) : null;
+
+        sweeper = new Thread(this::sweep, "session-expiry");
+        sweeper.setDaemon(true);
+        sweeper.start();
+    }
+
+    // Loads the sessions stored on disk. Restored sessions start a new idle
+    // period, since accesses are not logged; the absolute limit still counts
+    // from their creation.
+    private SessionLog openLog(Map<String, Object> config) {
+        SessionLog sessionLog = new SessionLog(config);
+        List<SessionLog.Recovered> recovered;
+        try {
+            recovered = sessionLog.open(this::snapshot);
+        } catch (IOException e) {
+            System.err.println("Session store unavailable, sessions will not persist: " + e.getMessage());
+            return null;
+        }
+        long now = System.currentTimeMillis();
+        for (SessionLog.Recovered stored : recovered) {
+            if (stored.created + maxAgeMs <= now) continue;
+            Session session = new Session(stored.id, stored.created, now, sessionLog);
+            session.attributes.putAll(stored.attributes);
+            insert(session);
+        }
+        System.out.println("Restored " + live.get() + " session(s) from " + config.get("session_store"));
+        return sessionLog;
+    }
+
+    // Stops expiry and closes the session store, for a server removed by a
+    // config reload. Sessions already handed out keep working in memory.
+    public void close() {
+        sweeper.interrupt();
+        if (log != null) log.close();
+    }
+
+    // Every change is made in memory before it is logged, as in Session.put.
+    // A change logged into a generation that compaction then deletes was
+    // therefore already visible to the snapshot that replaces it.
+    public Session createSession() {
+        long now = System.currentTimeMillis();
+        Session session = new Session(UUID.randomUUID().toString(), now, now, log);
+        insert(session);
+        if (log != null) log.create(session.id, session.created);
+        created.increment();
+        return session;
+    }
+
+    private void insert(Session session) {
+        Map<String, Session> stripe = stripeOf(session.id);
+        Session eldest = null;
+        synchronized (wheel) {
+            session.timeout = wheel.schedule(session, deadline(session));
+        }
+        synchronized (stripe) {
+            stripe.put(session.id, session);
+            if (stripe.size() > maxPerStripe) {
+                Iterator<Session> it = stripe.values().iterator();
+                eldest = it.next();
+                it.remove();
+            }
+        }
+        live.incrementAndGet();
+        if (eldest != null) {
+            evicted.increment();
+            live.decrementAndGet();
+            drop(eldest);
+        }
+    }
+
+    // Returns the live session with this id and marks it as used, or null.
+    public Session getSession(String sessionId) {
+        long now = System.currentTimeMillis();
+        Map<String, Session> stripe = stripeOf(sessionId);
+        Session session;
+        synchronized (stripe) {
+            session = stripe.get(sessionId);
+            if (session == null) return null;
+            if (deadline(session) > now) {
+                session.lastAccess = now;
+                return session;
+            }
+            // The sweeper has not reached it yet.
+            stripe.remove(sessionId);
+        }
+        expired.increment();
+        live.decrementAndGet();
+        drop(session);
+        return null;
+    }
+
+    public void invalidateSession(String sessionId) {
+        Map<String, Session> stripe = stripeOf(sessionId);
+        Session session;
+        synchronized (stripe) {
+            session = stripe.remove(sessionId);
+        }
+        if (session != null) {
+            live.decrementAndGet();
+            drop(session);
+        }
+    }
+
+    // Forgets a session already taken out of its stripe. Stripe locks are
+    // never held while taking the wheel lock; the sweeper takes them in the
+    // opposite order.
+    private void drop(Session session) {
+        // The session's own log: sessions evicted while openLog restores
+        // them are dropped before the log field is set.
+        if (session.log != null) session.log.delete(session.id);
+        synchronized (wheel) {
+            if (session.timeout != null) {
+                wheel.cancel(session.timeout);
+            }
+        }
+    }
+
+    public int getLiveCount() { return live.get(); }
+    public long getCreatedCount() { return created.sum(); }
+    public long getEvictedCount() { return evicted.sum(); }
+    public long getExpiredCount() { return expired.sum(); }
+
+    // Every live session, for the SessionLog snapshot.
+    private List<Session> snapshot() {
+        List<Session> all = new ArrayList<>(live.get());
+        for (Map<String, Session> stripe : stripes) {
+            synchronized (stripe) {
+                all.addAll(stripe.values());
+            }
+        }
+        return all;
+    }
+
+    private Map<String, Session> stripeOf(String sessionId) {
+        int h = sessionId.hashCode();
+        return stripes[(h ^ (h >>> 16)) & (STRIPES - 1)];
     }
 
-    public static Map<String, Object> getSession(String sessionId) {
-        return sessions.get(sessionId);
+    private long deadline(Session session) {
+        return Math.min(session.lastAccess + idleTimeoutMs, session.created + maxAgeMs);
     }
 
-    public static void invalidateSession(String sessionId) {
-        sessions.remove(sessionId);
+    // Wheel entries are not moved on every access. When one fires, a session
+    // that was used in the meantime is simply scheduled again for its new
+    // deadline.
+    private void sweep() {
+        while (true) {
+            try {
+                Thread.sleep(wheel.getTickMs());
+            } catch (InterruptedException e) {
+                return;
+            }
+            long now = System.currentTimeMillis();
+            synchronized (wheel) {
+                wheel.advance(now, session -> {
+                    Map<String, Session> stripe = stripeOf(session.id);
+                    synchronized (stripe) {
+                        // containsKey, unlike get, leaves the LRU order alone.
+                        if (!stripe.containsKey(session.id)) return;
+                        long deadline = deadline(session);
+                        if (deadline > now) {
+                            session.timeout = wheel.schedule(session, deadline);
+                            return;
+                        }
+                        stripe.remove(session.id);
+                    }
+                    expired.increment();
+                    live.decrementAndGet();
+                    if (log != null) log.delete(session.id);
+                });
+            }
+        }
     }
 }
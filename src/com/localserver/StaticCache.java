@@ -0,0 +1,258 @@
+package com.localserver;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongFunction;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+// In-memory cache of small static files, keyed by the normalized request
+// path. Each entry holds the encoded status line, headers and body in one
+// direct buffer so a hit is written straight to the socket. Entries are
+// evicted LRU once the byte budget is exceeded, and dropped as soon as the
+// WatchService on the root reports a change to their file.
+public class StaticCache {
+    public static class Entry {
+        private final Path file;
+        private final ByteBuffer head; // status line and headers, without Connection or the blank line
+        private final ByteBuffer body;
+        private final String etag;
+        private final long lastModified;
+        private final boolean compressible;
+        private final int weight;
+
+        Entry(Path file, ByteBuffer head, ByteBuffer body, String etag, long lastModified, boolean compressible) {
+            this.file = file;
+            this.head = head;
+            this.body = body;
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.compressible = compressible;
+            this.weight = head.capacity() + body.capacity();
+        }
+
+        public Path getFile() { return file; }
+        public String getETag() { return etag; }
+        public long getLastModified() { return lastModified; }
+
+        // Compressible entries are the identity variant; encoded variants are
+        // cached under their own key.
+        public boolean isCompressible() { return compressible; }
+
+        // Fresh views over the shared buffers, one per response being written.
+        public ByteBuffer head() { return head.duplicate(); }
+        public ByteBuffer body() { return body.duplicate(); }
+    }
+
+    private final long maxBytes;
+    private final long maxEntryBytes;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(64, 0.75f, true);
+    private long totalBytes;
+    private long generation; // bumped on every invalidation
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private WatchService watcher;
+    private volatile boolean closed;
+
+    public StaticCache(Map<String, Object> config, Path root) {
+        this.maxBytes = ConfigLoader.getInt(config, "static_cache_max_bytes", 64 * 1024 * 1024);
+        this.maxEntryBytes = ConfigLoader.getInt(config, "static_cache_max_entry_bytes", 1024 * 1024);
+        if (maxBytes > 0) {
+            startWatcher(root);
+        }
+    }
+
+    public Entry get(String path) {
+        Entry entry;
+        synchronized (this) {
+            entry = entries.get(path);
+        }
+        if (entry != null) {
+            hits.increment();
+        } else {
+            misses.increment();
+        }
+        return entry;
+    }
+
+    public boolean accepts(long size) {
+        return maxBytes > 0 && !closed && size <= maxEntryBytes && size <= maxBytes;
+    }
+
+    // Stops watching and drops every entry once no current Router uses this
+    // cache. Without the watcher nothing could be invalidated, so requests
+    // that still arrive afterwards are served from disk.
+    public void close() {
+        closed = true;
+        if (watcher != null) {
+            try {
+                watcher.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+        clear();
+    }
+
+    // Reads the file into a new direct buffer and caches it behind the head
+    // that headFor builds for the number of bytes read, so Content-Length
+    // matches the body even if the file changed since the caller looked.
+    // The caller has already checked accepts(size).
+    public Entry put(String key, Path file, LongFunction<byte[]> headFor, String etag, long lastModified,
+                     boolean compressible) throws IOException {
+        long startGeneration = generation();
+        ByteBuffer data;
+        byte[] head;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            head = headFor.apply(size);
+            data = ByteBuffer.allocateDirect(head.length + (int) size);
+            data.put(head);
+            while (data.hasRemaining()) {
+                if (channel.read(data) == -1) {
+                    throw new IOException("File changed while caching: " + file);
+                }
+            }
+        }
+        return insert(key, startGeneration, new Entry(file, head(data, head.length), body(data, head.length), etag, lastModified, compressible));
+    }
+
+    // Caches a body that was produced in memory, such as a compressed variant
+    // of the given file.
+    public Entry put(String key, Path file, byte[] head, byte[] body, String etag, long lastModified) {
+        long startGeneration = generation();
+        ByteBuffer data = ByteBuffer.allocateDirect(head.length + body.length);
+        data.put(head).put(body);
+        return insert(key, startGeneration, new Entry(file, head(data, head.length), body(data, head.length), etag, lastModified, false));
+    }
+
+    private static ByteBuffer head(ByteBuffer data, int headLength) {
+        return data.duplicate().position(0).limit(headLength).slice().asReadOnlyBuffer();
+    }
+
+    private static ByteBuffer body(ByteBuffer data, int headLength) {
+        return data.duplicate().position(headLength).limit(data.capacity()).slice().asReadOnlyBuffer();
+    }
+
+    private synchronized long generation() {
+        return generation;
+    }
+
+    private synchronized Entry insert(String key, long startGeneration, Entry entry) {
+        // A change seen while the file was being read may not be in the
+        // buffer; serve this copy once but don't keep it.
+        if (generation != startGeneration) return entry;
+        Entry old = entries.put(key, entry);
+        if (old != null) totalBytes -= old.weight;
+        totalBytes += entry.weight;
+        Iterator<Entry> it = entries.values().iterator();
+        while (totalBytes > maxBytes && it.hasNext()) {
+            Entry eldest = it.next();
+            it.remove();
+            totalBytes -= eldest.weight;
+            evictions.increment();
+        }
+        return entry;
+    }
+
+    // Drops every entry served from the given file, or from anything under it
+    // when it is a directory.
+    public synchronized void invalidate(Path changed) {
+        generation++;
+        Iterator<Entry> it = entries.values().iterator();
+        while (it.hasNext()) {
+            Entry entry = it.next();
+            if (entry.file.startsWith(changed)) {
+                it.remove();
+                totalBytes -= entry.weight;
+            }
+        }
+    }
+
+    public synchronized void clear() {
+        generation++;
+        entries.clear();
+        totalBytes = 0;
+    }
+
+    public long getHits() { return hits.sum(); }
+    public long getMisses() { return misses.sum(); }
+    public long getEvictions() { return evictions.sum(); }
+    public synchronized long getSize() { return totalBytes; }
+    public synchronized int getEntryCount() { return entries.size(); }
+
+    private void startWatcher(Path root) {
+        if (!Files.isDirectory(root)) return;
+        try {
+            watcher = FileSystems.getDefault().newWatchService();
+            registerTree(root);
+        } catch (IOException e) {
+            System.err.println("Static cache disabled, cannot watch " + root + ": " + e.getMessage());
+            watcher = null;
+            return;
+        }
+        Thread thread = new Thread(this::watch, "static-cache-watch");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void registerTree(Path dir) throws IOException {
+        Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path d, BasicFileAttributes attrs) throws IOException {
+                d.register(watcher, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private void watch() {
+        while (true) {
+            WatchKey key;
+            try {
+                key = watcher.take();
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+            Path dir = (Path) key.watchable();
+            for (WatchEvent<?> event : key.pollEvents()) {
+                if (event.kind() == OVERFLOW) {
+                    clear();
+                    continue;
+                }
+                Path changed = dir.resolve((Path) event.context());
+                invalidate(changed);
+                // A precompressed sibling is stale once its original changes.
+                invalidate(changed.resolveSibling(changed.getFileName() + ".gz"));
+                if (event.kind() == ENTRY_CREATE && Files.isDirectory(changed)) {
+                    try {
+                        registerTree(changed);
+                    } catch (IOException e) {
+                        // The directory vanished again; nothing to watch.
+                    }
+                }
+            }
+            key.reset();
+        }
+    }
+}
@@ -0,0 +1,338 @@
+package com.localserver;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Builds responses for files under a router's root: MIME types, the static
+// cache, validators (ETag/Last-Modified), conditional GET, byte ranges and
+// compressed variants.
+// Bodies are FileRegions or cached buffers, so ranges are sent with
+// transferTo and never read into the heap.
+public class StaticFiles {
+    private static final DateTimeFormatter HTTP_DATE = DateTimeFormatter.RFC_1123_DATE_TIME.withZone(ZoneOffset.UTC);
+    private static final int MAX_RANGES = 16;
+    private static final Map<String, String> MIME_TYPES = new HashMap<>();
+    static {
+        MIME_TYPES.put("html", "text/html");
+        MIME_TYPES.put("css", "text/css");
+        MIME_TYPES.put("js", "application/javascript");
+        MIME_TYPES.put("png", "image/png");
+        MIME_TYPES.put("jpg", "image/jpeg");
+    }
+
+    private final StaticCache cache;
+    private final Compression compression;
+
+    public StaticFiles(Map<String, Object> config, Path root, Compression compression) {
+        this(new StaticCache(config, root), compression);
+    }
+
+    // Serves through an existing cache, which a reloaded Router keeps when
+    // nothing that affects cached responses has changed.
+    public StaticFiles(StaticCache cache, Compression compression) {
+        this.cache = cache;
+        this.compression = compression;
+    }
+
+    public StaticCache getCache() { return cache; }
+
+    // Answers a GET from the cache, or returns null when the request has to
+    // go through routing and the filesystem.
+    public HttpResponse serveCached(HttpRequest request, String cacheKey) {
+        StaticCache.Entry cached = cache.get(cacheKey);
+        if (cached == null || request.getHeader("Range") != null) return null;
+        boolean compressible = cached.isCompressible();
+        if (compressible) {
+            String encoding = compression.negotiate(request.getHeader("Accept-Encoding"));
+            if (encoding != null) {
+                cached = cache.get(variantKey(cacheKey, encoding));
+                if (cached == null) return null;
+            }
+        }
+        HttpResponse response = new HttpResponse();
+        if (notModified(request, cached.getETag(), cached.getLastModified())) {
+            notModified(response, cached.getETag(), cached.getLastModified(), compressible);
+        } else {
+            response.setCached(cached);
+        }
+        return response;
+    }
+
+    public HttpResponse serve(HttpRequest request, File file, String cacheKey) throws IOException {
+        String name = file.getName();
+        int dot = name.lastIndexOf('.');
+        String mimeType = MIME_TYPES.getOrDefault(dot == -1 ? "" : name.substring(dot + 1), "application/octet-stream");
+        long size = file.length();
+        long lastModified = file.lastModified();
+        String etag = "\"" + Long.toHexString(size) + "-" + Long.toHexString(lastModified) + "\"";
+
+        String range = request.getHeader("Range");
+        boolean compressible = compression.isCompressible(mimeType, size);
+        if (compressible && range == null) {
+            String encoding = compression.negotiate(request.getHeader("Accept-Encoding"));
+            if (encoding != null) {
+                HttpResponse encoded = serveEncoded(request, file, cacheKey, mimeType, lastModified, etag, encoding);
+                if (encoded != null) return encoded;
+            }
+        }
+
+        HttpResponse response = new HttpResponse();
+        if (notModified(request, etag, lastModified)) {
+            notModified(response, etag, lastModified, compressible);
+            return response;
+        }
+        response.setHeader("ETag", etag);
+        response.setHeader("Last-Modified", HTTP_DATE.format(Instant.ofEpochMilli(lastModified)));
+        response.setHeader("Accept-Ranges", "bytes");
+        if (compressible) {
+            response.setHeader("Vary", "Accept-Encoding");
+        }
+
+        if (range != null && request.getMethod().equals("GET") && ifRangeMatches(request, etag, lastModified)) {
+            long[] ranges = parseRanges(range, size);
+            if (ranges != null) {
+                if (ranges.length == 0) {
+                    response.setStatus(416, "Range Not Satisfiable");
+                    response.setHeader("Content-Range", "bytes */" + size);
+                    response.setBody(new byte[0], mimeType);
+                    return response;
+                }
+                return serveRanges(response, file.toPath(), ranges, size, mimeType);
+            }
+        }
+
+        response.setStatus(200, "OK");
+        if (cacheKey != null && cache.accepts(size)) {
+            response.setHeader("Content-Type", mimeType);
+            response.setCached(cache.put(cacheKey, file.toPath(), length -> cachedHead(response, length),
+                    etag, lastModified, compressible));
+            return response;
+        }
+
+        return serveRegion(response, file, mimeType);
+    }
+
+    // Serves a gzip/deflate variant: a precompressed .gz sibling when one is
+    // up to date, otherwise the file compressed once and kept in the cache.
+    // Returns null when the file is too large to compress in memory.
+    private HttpResponse serveEncoded(HttpRequest request, File file, String cacheKey, String mimeType,
+                                      long lastModified, String etag, String encoding) throws IOException {
+        HttpResponse response = new HttpResponse();
+        File precompressed = new File(file.getPath() + ".gz");
+        boolean usePrecompressed = encoding.equals(Compression.GZIP) && precompressed.lastModified() >= lastModified;
+        long size = usePrecompressed ? precompressed.length() : file.length();
+        if (!usePrecompressed && !cache.accepts(size)) return null;
+
+        // A .gz file is a fixed byte sequence and gets a strong tag; a variant
+        // compressed here only promises equivalent content.
+        String variantTag = usePrecompressed
+                ? "\"" + Long.toHexString(size) + "-" + Long.toHexString(precompressed.lastModified()) + "-gz\""
+                : "W/" + etag.substring(0, etag.length() - 1) + "-" + encoding + "\"";
+        if (notModified(request, variantTag, lastModified)) {
+            notModified(response, variantTag, lastModified, true);
+            return response;
+        }
+        response.setStatus(200, "OK");
+        response.setHeader("ETag", variantTag);
+        response.setHeader("Last-Modified", HTTP_DATE.format(Instant.ofEpochMilli(lastModified)));
+        response.setHeader("Vary", "Accept-Encoding");
+        response.setHeader("Content-Encoding", encoding);
+
+        if (!usePrecompressed) {
+            // A request path that cannot be a cache key (an index file, or one
+            // with dot segments) still gets its variant cached, under the file
+            // itself; only this method looks it up, checking the mtime.
+            String key = variantKey(cacheKey != null ? cacheKey : fileKey(file), encoding);
+            if (cacheKey == null) {
+                StaticCache.Entry kept = cache.get(key);
+                if (kept != null && kept.getLastModified() == lastModified) {
+                    response.setCached(kept);
+                    return response;
+                }
+            }
+            byte[] compressed = compression.compress(Files.readAllBytes(file.toPath()), encoding);
+            response.setHeader("Content-Type", mimeType);
+            response.setCached(cache.put(key, file.toPath(), cachedHead(response, compressed.length),
+                    compressed, variantTag, lastModified));
+            return response;
+        }
+        if (cacheKey != null && cache.accepts(size)) {
+            response.setHeader("Content-Type", mimeType);
+            StaticCache.Entry entry = cache.put(variantKey(cacheKey, encoding), precompressed.toPath(),
+                    length -> cachedHead(response, length), variantTag, lastModified, false);
+            response.setCached(entry);
+            return response;
+        }
+        return serveRegion(response, precompressed, mimeType);
+    }
+
+    // The head for a cached body of the given length. The blank line is left
+    // off; the connection header goes there.
+    private static byte[] cachedHead(HttpResponse response, long length) {
+        response.setHeader("Content-Length", String.valueOf(length));
+        byte[] head = response.encodeHead();
+        return Arrays.copyOf(head, head.length - 2);
+    }
+
+    // Sends the whole file as it is when opened, which may differ from the
+    // length seen when the validators were computed.
+    private static HttpResponse serveRegion(HttpResponse response, File file, String mimeType) throws IOException {
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        response.setBody(new FileRegion(channel, 0, channel.size()), mimeType);
+        return response;
+    }
+
+    private static String variantKey(String cacheKey, String encoding) {
+        return cacheKey + " " + encoding;
+    }
+
+    // Request paths always start with a slash, so this cannot collide.
+    private static String fileKey(File file) {
+        return "file:" + file.getAbsolutePath();
+    }
+
+    private HttpResponse serveRanges(HttpResponse response, Path file, long[] ranges, long size, String mimeType) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+        response.setStatus(206, "Partial Content");
+        if (ranges.length == 2) {
+            response.setHeader("Content-Range", "bytes " + ranges[0] + "-" + ranges[1] + "/" + size);
+            response.setBody(new FileRegion(channel, ranges[0], ranges[1] - ranges[0] + 1), mimeType);
+            return response;
+        }
+
+        // multipart/byteranges: every part shares the channel and the last
+        // one closes it.
+        String boundary = "localserver_" + Long.toHexString(System.nanoTime());
+        List<Outbound> parts = new ArrayList<>();
+        long length = 0;
+        for (int i = 0; i < ranges.length; i += 2) {
+            byte[] partHead = ("\r\n--" + boundary + "\r\nContent-Type: " + mimeType
+                    + "\r\nContent-Range: bytes " + ranges[i] + "-" + ranges[i + 1] + "/" + size + "\r\n\r\n")
+                    .getBytes(StandardCharsets.US_ASCII);
+            long count = ranges[i + 1] - ranges[i] + 1;
+            parts.add(Outbound.of(ByteBuffer.wrap(partHead)));
+            parts.add(new FileRegion(channel, ranges[i], count, i + 2 == ranges.length));
+            length += partHead.length + count;
+        }
+        byte[] end = ("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.US_ASCII);
+        parts.add(Outbound.of(ByteBuffer.wrap(end)));
+        length += end.length;
+        response.setBody(parts, length, "multipart/byteranges; boundary=" + boundary);
+        return response;
+    }
+
+    private static void notModified(HttpResponse response, String etag, long lastModified, boolean compressible) {
+        response.setStatus(304, "Not Modified");
+        if (compressible) {
+            response.setHeader("Vary", "Accept-Encoding");
+        }
+        response.setHeader("ETag", etag);
+        response.setHeader("Last-Modified", HTTP_DATE.format(Instant.ofEpochMilli(lastModified)));
+    }
+
+    // If-None-Match takes precedence over If-Modified-Since (RFC 7232 3.3).
+    private static boolean notModified(HttpRequest request, String etag, long lastModified) {
+        String ifNoneMatch = request.getHeader("If-None-Match");
+        if (ifNoneMatch != null) {
+            return matchesAny(ifNoneMatch, etag);
+        }
+        String ifModifiedSince = request.getHeader("If-Modified-Since");
+        if (ifModifiedSince != null) {
+            long since = parseDate(ifModifiedSince);
+            return since != -1 && lastModified / 1000 <= since / 1000;
+        }
+        return false;
+    }
+
+    // Weak comparison, as used by If-None-Match: W/"x" matches "x".
+    private static boolean matchesAny(String header, String etag) {
+        String opaque = stripWeak(etag);
+        for (String candidate : header.split(",")) {
+            candidate = candidate.trim();
+            if (candidate.equals("*") || stripWeak(candidate).equals(opaque)) return true;
+        }
+        return false;
+    }
+
+    // If-Range needs a strong validator match or an exact date.
+    private static boolean ifRangeMatches(HttpRequest request, String etag, long lastModified) {
+        String ifRange = request.getHeader("If-Range");
+        if (ifRange == null) return true;
+        ifRange = ifRange.trim();
+        if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+            return !etag.startsWith("W/") && ifRange.equals(etag);
+        }
+        long date = parseDate(ifRange);
+        return date != -1 && date / 1000 == lastModified / 1000;
+    }
+
+    private static String stripWeak(String etag) {
+        return etag.startsWith("W/") ? etag.substring(2) : etag;
+    }
+
+    private static long parseDate(String value) {
+        try {
+            return ZonedDateTime.parse(value.trim(), HTTP_DATE).toInstant().toEpochMilli();
+        } catch (DateTimeParseException e) {
+            return -1;
+        }
+    }
+
+    // Returns inclusive [first, last] pairs, an empty array when nothing is
+    // satisfiable (416), or null when the header should be ignored.
+    static long[] parseRanges(String header, long size) {
+        header = header.trim();
+        if (!header.regionMatches(true, 0, "bytes=", 0, 6)) return null;
+        String[] specs = header.substring(6).split(",");
+        if (specs.length > MAX_RANGES) return null;
+        long[] ranges = new long[specs.length * 2];
+        int count = 0;
+        for (String spec : specs) {
+            spec = spec.trim();
+            int dash = spec.indexOf('-');
+            if (dash == -1) return null;
+            long first;
+            long last;
+            try {
+                if (dash == 0) {
+                    long suffix = Long.parseLong(spec.substring(1));
+                    if (suffix <= 0) continue;
+                    first = Math.max(0, size - suffix);
+                    last = size - 1;
+                } else {
+                    first = Long.parseLong(spec.substring(0, dash));
+                    if (dash == spec.length() - 1) {
+                        last = size - 1;
+                    } else {
+                        last = Long.parseLong(spec.substring(dash + 1));
+                        if (last < first) return null;
+                        last = Math.min(last, size - 1);
+                    }
+                }
+            } catch (NumberFormatException e) {
+                return null;
+            }
+            if (first >= size || first > last) continue;
+            ranges[count * 2] = first;
+            ranges[count * 2 + 1] = last;
+            count++;
+        }
+        return Arrays.copyOf(ranges, count * 2);
+    }
+}
@@ -0,0 +1,100 @@
+package com.localserver;
+
+import java.util.function.Consumer;
+
+// Hashed timing wheel: deadlines are bucketed into slots of tickMs, so
+// scheduling and cancelling are O(1) and advancing only visits the slots
+// whose time has passed. Timeouts fire up to one tick late. Not thread-safe;
+// callers that share a wheel across threads synchronize around it.
+public class TimerWheel<T> {
+    public static final class Timeout<T> {
+        private final T item;
+        private final long deadline;
+        private Timeout<T> prev;
+        private Timeout<T> next;
+        private int slot = -1;
+
+        private Timeout(T item, long deadline) {
+            this.item = item;
+            this.deadline = deadline;
+        }
+
+        public T getItem() { return item; }
+        public long getDeadline() { return deadline; }
+        public boolean isPending() { return slot != -1; }
+    }
+
+    private final long tickMs;
+    private final Timeout<T>[] heads;
+    private final int mask;
+    private long tick;  // index of the next tick to process
+    private int size;
+
+    public TimerWheel(long tickMs, int slots, long now) {
+        int capacity = Integer.highestOneBit(Math.max(slots - 1, 1)) << 1;
+        this.tickMs = tickMs;
+        // Only Timeout<T>s are ever stored, so the unchecked cast is safe.
+        @SuppressWarnings("unchecked")
+        Timeout<T>[] slotHeads = (Timeout<T>[]) new Timeout<?>[capacity];
+        this.heads = slotHeads;
+        this.mask = capacity - 1;
+        this.tick = now / tickMs;
+    }
+
+    public long getTickMs() { return tickMs; }
+    public int size() { return size; }
+
+    public Timeout<T> schedule(T item, long deadline) {
+        Timeout<T> timeout = new Timeout<>(item, deadline);
+        // Deadlines already in the past go into the next slot to be processed.
+        long due = Math.max(deadline / tickMs, tick);
+        int slot = (int) (due & mask);
+        timeout.slot = slot;
+        timeout.next = heads[slot];
+        if (heads[slot] != null) heads[slot].prev = timeout;
+        heads[slot] = timeout;
+        size++;
+        return timeout;
+    }
+
+    public void cancel(Timeout<T> timeout) {
+        if (timeout.slot == -1) return;
+        unlink(timeout);
+    }
+
+    // Fires the timeouts of every tick that has fully elapsed by now.
+    // Entries whose deadline lies a full rotation or more ahead stay in
+    // their slot. The callback may schedule new timeouts but must not
+    // cancel other ones.
+    public void advance(long now, Consumer<T> expired) {
+        long current = now / tickMs;
+        // After a long pause one pass over the wheel covers every slot.
+        if (current - tick > heads.length) {
+            tick = current - heads.length;
+        }
+        for (; tick < current; tick++) {
+            Timeout<T> timeout = heads[(int) (tick & mask)];
+            while (timeout != null) {
+                Timeout<T> next = timeout.next;
+                if (timeout.deadline <= now) {
+                    unlink(timeout);
+                    expired.accept(timeout.item);
+                }
+                timeout = next;
+            }
+        }
+    }
+
+    private void unlink(Timeout<T> timeout) {
+        if (timeout.prev != null) {
+            timeout.prev.next = timeout.next;
+        } else {
+            heads[timeout.slot] = timeout.next;
+        }
+        if (timeout.next != null) timeout.next.prev = timeout.prev;
+        timeout.prev = null;
+        timeout.next = null;
+        timeout.slot = -1;
+        size--;
+    }
+}
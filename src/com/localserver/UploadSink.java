@@ -0,0 +1,54 @@
+package com.localserver;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+// Streams an upload body straight into a temporary file next to its target
+// as it arrives, then renames it into place once the body is complete. A
+// partial upload never becomes visible under the target name.
+public class UploadSink implements BodySink {
+    private final Path target;
+    private final Path temp;
+    private final FileChannel channel;
+
+    public UploadSink(Path target) throws IOException {
+        this.target = target;
+        Files.createDirectories(target.getParent());
+        this.temp = Files.createTempFile(target.getParent(), ".upload-", ".tmp");
+        this.channel = FileChannel.open(temp, StandardOpenOption.WRITE);
+    }
+
+    @Override
+    public void write(ByteBuffer data) throws IOException {
+        while (data.hasRemaining()) {
+            channel.write(data);
+        }
+    }
+
+    @Override
+    public void finish(HttpRequest request) throws IOException {
+        channel.close();
+        try {
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            abort();
+            throw e;
+        }
+        request.setUploadedFile(target);
+    }
+
+    @Override
+    public void abort() {
+        try {
+            channel.close();
+            Files.deleteIfExists(temp);
+        } catch (IOException e) {
+            // ignore
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package com.localserver;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+// The servers that share one listening address. Server attaches an
+// instance to each listening key; every connection accepted there picks
+// its Router by the request's Host header, matched against server_name in
+// a hash map. Requests without a known Host go to the first server
+// configured for the address. It also stands in as the parser's BodyPolicy,
+// so body limits and upload targets follow the chosen server.
+public class VirtualHosts implements HttpParser.BodyPolicy {
+    private final Router defaultRouter;
+    private final Map<String, Router> byName = new HashMap<>();
+
+    public VirtualHosts(Router defaultRouter) {
+        this.defaultRouter = defaultRouter;
+    }
+
+    // Earlier servers keep a name that a later one repeats.
+    public void add(Iterable<String> names, Router router) {
+        for (String name : names) {
+            byName.putIfAbsent(name.toLowerCase(Locale.ROOT), router);
+        }
+    }
+
+    // server_name may be one name, several separated by spaces, or a list.
+    public static List<String> serverNames(Map<String, Object> serverConfig) {
+        Object value = serverConfig.get("server_name");
+        List<String> names = new ArrayList<>();
+        if (value instanceof Iterable) {
+            for (Object name : (Iterable<Object>) value) {
+                names.add(name.toString());
+            }
+        } else if (value != null) {
+            for (String name : value.toString().trim().split("\\s+")) {
+                if (!name.isEmpty()) names.add(name);
+            }
+        }
+        return names;
+    }
+
+    public Router getDefault() { return defaultRouter; }
+
+    public Router select(HttpRequest request) {
+        if (byName.isEmpty()) return defaultRouter;
+        String host = request.getHeader("Host");
+        if (host == null) return defaultRouter;
+        Router router = byName.get(hostName(host).toLowerCase(Locale.ROOT));
+        return router != null ? router : defaultRouter;
+    }
+
+    // Strips the port from a Host value, including bracketed IPv6 forms.
+    private static String hostName(String host) {
+        if (host.startsWith("[")) {
+            int close = host.indexOf(']');
+            return close == -1 ? host : host.substring(0, close + 1);
+        }
+        int colon = host.indexOf(':');
+        return colon == -1 ? host : host.substring(0, colon);
+    }
+
+    @Override
+    public long maxBodySize(HttpRequest request) {
+        return select(request).maxBodySize(request);
+    }
+
+    @Override
+    public BodySink open(HttpRequest request, long contentLength) throws IOException, HttpParser.ParseException {
+        return select(request).open(request, contentLength);
+    }
+}
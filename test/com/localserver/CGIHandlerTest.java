@@ -0,0 +1,38 @@
+package com.localserver;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.Map;
+import org.junit.jupiter.api.Test;
+
+class CGIHandlerTest {
+    private static HttpRequest request(String head) throws Exception {
+        HttpParser parser = new HttpParser();
+        return parser.parse(ByteBuffer.wrap(head.getBytes(StandardCharsets.ISO_8859_1)));
+    }
+
+    @Test
+    void environmentCarriesPeerAndHeaders() throws Exception {
+        HttpRequest request = request("GET /cgi-bin/env.py?x=1 HTTP/1.1\r\nHost: example.com\r\n"
+                + "User-Agent: test\r\nX-Forwarded-For: 10.0.0.1\r\nx-forwarded-for: 10.0.0.2\r\n"
+                + "Content-Type: text/plain\r\nProxy: http://evil\r\nX-Nul: a\0b\r\n\r\n");
+        request.setRemoteAddress(new InetSocketAddress("192.0.2.7", 50123));
+
+        Map<String, String> env = CGIHandler.environment(request, Paths.get("env.py"));
+        assertEquals("192.0.2.7", env.get("REMOTE_ADDR"));
+        assertEquals("50123", env.get("REMOTE_PORT"));
+        assertEquals("example.com", env.get("HTTP_HOST"));
+        assertEquals("test", env.get("HTTP_USER_AGENT"));
+        assertEquals("10.0.0.1, 10.0.0.2", env.get("HTTP_X_FORWARDED_FOR"));
+        assertEquals("text/plain", env.get("CONTENT_TYPE"));
+        assertEquals("x=1", env.get("QUERY_STRING"));
+        assertFalse(env.containsKey("HTTP_CONTENT_TYPE"));
+        assertFalse(env.containsKey("HTTP_PROXY"));
+        assertFalse(env.containsKey("HTTP_X_NUL"));
+    }
+}
@@ -0,0 +1,60 @@
+package com.localserver;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.zip.Inflater;
+import org.junit.jupiter.api.Test;
+
+class CompressionTest {
+    private final Compression compression = new Compression(Map.of("compression", true));
+
+    // Inflates whatever complete blocks data holds, without needing the end
+    // of the stream.
+    private static String inflatePartial(byte[] data, boolean gzip) throws Exception {
+        Inflater inflater = new Inflater(gzip);
+        // A gzip stream starts with a 10-byte header before the raw deflate data.
+        int offset = gzip ? 10 : 0;
+        inflater.setInput(Arrays.copyOfRange(data, offset, data.length));
+        byte[] out = new byte[65536];
+        int n = inflater.inflate(out);
+        inflater.end();
+        return new String(out, 0, n, StandardCharsets.UTF_8);
+    }
+
+    private void assertFlushPassesDataOn(String encoding) throws Exception {
+        ByteArrayOutputStream sink = new ByteArrayOutputStream();
+        OutputStream compressed = compression.open(sink, encoding);
+        compressed.write("Content-type: first part of a streamed body\n".getBytes(StandardCharsets.UTF_8));
+        compressed.flush();
+        assertEquals("Content-type: first part of a streamed body\n",
+                inflatePartial(sink.toByteArray(), encoding.equals(Compression.GZIP)));
+        compressed.close();
+    }
+
+    @Test
+    void gzipFlushPassesDataOn() throws Exception {
+        assertFlushPassesDataOn(Compression.GZIP);
+    }
+
+    @Test
+    void deflateFlushPassesDataOn() throws Exception {
+        assertFlushPassesDataOn(Compression.DEFLATE);
+    }
+
+    @Test
+    void roundTripsInMemoryBodies() throws Exception {
+        byte[] body = "hello hello hello hello hello".repeat(100).getBytes(StandardCharsets.UTF_8);
+        byte[] deflated = compression.compress(body, Compression.DEFLATE);
+        Inflater inflater = new Inflater();
+        inflater.setInput(deflated);
+        byte[] out = new byte[body.length];
+        assertEquals(body.length, inflater.inflate(out));
+        assertEquals(true, inflater.finished());
+        inflater.end();
+    }
+}
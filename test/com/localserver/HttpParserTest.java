@@ -0,0 +1,163 @@
+package com.localserver;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+class HttpParserTest {
+    private final HttpParser parser = new HttpParser();
+    private final ByteBuffer buffer = ByteBuffer.allocate(65536);
+
+    // Appends bytes as one read would and returns every request completed
+    // by them, leaving the rest in the buffer like the reactor does.
+    private List<HttpRequest> feed(String data) throws HttpParser.ParseException {
+        buffer.put(data.getBytes(StandardCharsets.ISO_8859_1));
+        buffer.flip();
+        List<HttpRequest> requests = new ArrayList<>();
+        try {
+            HttpRequest request;
+            while ((request = parser.parse(buffer)) != null) {
+                requests.add(request);
+            }
+        } finally {
+            buffer.compact();
+        }
+        return requests;
+    }
+
+    @Test
+    void parsesPipelinedRequestsInOneRead() throws Exception {
+        List<HttpRequest> requests = feed("GET /a HTTP/1.1\r\nHost: x\r\n\r\n"
+                + "POST /b?q=1 HTTP/1.1\r\nHost: x\r\nContent-Length: 5\r\n\r\nhello"
+                + "GET /c HTTP/1.1\r\n\r\n");
+        assertEquals(3, requests.size());
+        assertEquals("GET", requests.get(0).getMethod());
+        assertEquals("/a", requests.get(0).getPath());
+        assertEquals("/b", requests.get(1).getPath());
+        assertEquals("1", requests.get(1).getQueryParams().get("q"));
+        assertEquals("hello", requests.get(1).getBody());
+        assertEquals("/c", requests.get(2).getPath());
+        assertEquals(0, buffer.position());
+    }
+
+    @Test
+    void resumesHeadAndBodySplitAcrossReads() throws Exception {
+        String request = "PUT /upload/x HTTP/1.1\r\nHost: example\r\nContent-Length: 10\r\n\r\n0123456789";
+        for (int i = 0; i < request.length() - 1; i++) {
+            assertTrue(feed(request.substring(i, i + 1)).isEmpty(), "complete after byte " + i);
+        }
+        List<HttpRequest> requests = feed(request.substring(request.length() - 1));
+        assertEquals(1, requests.size());
+        assertEquals("example", requests.get(0).getHeader("host"));
+        assertEquals("0123456789", requests.get(0).getBody());
+        assertFalse(parser.isReadingBody());
+    }
+
+    @Test
+    void decodesChunkedBodyAndDropsTrailers() throws Exception {
+        assertTrue(feed("POST /cgi HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\n4\r\nabcd\r\n").isEmpty());
+        assertTrue(parser.isReadingBody());
+        List<HttpRequest> requests = feed("3;ext=1\r\nxyz\r\n0\r\nX-Trailer: t\r\n\r\nGET / HTTP/1.1\r\n\r\n");
+        assertEquals(2, requests.size());
+        assertEquals("abcdxyz", requests.get(0).getBody());
+        assertEquals("/", requests.get(1).getPath());
+    }
+
+    @Test
+    void skipsBlankLinesBetweenRequests() throws Exception {
+        List<HttpRequest> requests = feed("GET /a HTTP/1.1\r\n\r\n\r\n\r\nGET /b HTTP/1.1\r\n\r\n");
+        assertEquals(2, requests.size());
+        assertEquals("/b", requests.get(1).getPath());
+    }
+
+    @Test
+    void reportsKeepAliveByVersionAndConnectionHeader() throws Exception {
+        List<HttpRequest> requests = feed("GET / HTTP/1.1\r\n\r\n"
+                + "GET / HTTP/1.1\r\nConnection: close\r\n\r\n"
+                + "GET / HTTP/1.0\r\n\r\n"
+                + "GET / HTTP/1.0\r\nConnection: keep-alive\r\n\r\n");
+        assertTrue(requests.get(0).isKeepAlive());
+        assertFalse(requests.get(1).isKeepAlive());
+        assertFalse(requests.get(2).isKeepAlive());
+        assertTrue(requests.get(3).isKeepAlive());
+    }
+
+    @Test
+    void flagsExpectContinueOnce() throws Exception {
+        assertTrue(feed("POST /u HTTP/1.1\r\nExpect: 100-continue\r\nContent-Length: 3\r\n\r\n").isEmpty());
+        assertTrue(parser.takeExpectContinue());
+        assertFalse(parser.takeExpectContinue());
+        assertEquals(1, feed("abc").size());
+    }
+
+    @Test
+    void rejectsMalformedRequestLine() {
+        HttpParser.ParseException e = assertThrows(HttpParser.ParseException.class, () -> feed("GARBAGE\r\n\r\n"));
+        assertEquals(400, e.getStatus());
+    }
+
+    @Test
+    void rejectsHeaderWithoutColon() {
+        HttpParser.ParseException e = assertThrows(HttpParser.ParseException.class,
+                () -> feed("GET / HTTP/1.1\r\nNoColon\r\n\r\n"));
+        assertEquals(400, e.getStatus());
+    }
+
+    @Test
+    void rejectsUnsupportedTransferEncoding() {
+        HttpParser.ParseException e = assertThrows(HttpParser.ParseException.class,
+                () -> feed("POST / HTTP/1.1\r\nTransfer-Encoding: gzip\r\n\r\n"));
+        assertEquals(501, e.getStatus());
+    }
+
+    @Test
+    void rejectsOversizedHead() {
+        String header = "X-Long: " + "a".repeat(HttpParser.MAX_HEAD_SIZE) + "\r\n";
+        HttpParser.ParseException e = assertThrows(HttpParser.ParseException.class,
+                () -> feed("GET / HTTP/1.1\r\n" + header));
+        assertEquals(431, e.getStatus());
+    }
+
+    @Test
+    void enforcesBodyPolicyBeforeReadingBody() throws Exception {
+        parser.setBodyPolicy(new HttpParser.BodyPolicy() {
+            @Override
+            public long maxBodySize(HttpRequest request) {
+                return 4;
+            }
+
+            @Override
+            public BodySink open(HttpRequest request, long contentLength) {
+                return BodySink.memory(contentLength);
+            }
+        });
+        HttpParser.ParseException e = assertThrows(HttpParser.ParseException.class,
+                () -> feed("POST / HTTP/1.1\r\nContent-Length: 5\r\n\r\n"));
+        assertEquals(413, e.getStatus());
+
+        parser.abort();
+        buffer.clear();
+        e = assertThrows(HttpParser.ParseException.class,
+                () -> feed("POST / HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\n3\r\nabc\r\n2\r\nde\r\n"));
+        assertEquals(413, e.getStatus());
+    }
+
+    @Test
+    void leavesIncompleteHeadInBuffer() throws Exception {
+        assertTrue(feed("GET /partial HTTP/1.1\r\nHost: x\r\n").isEmpty());
+        assertEquals("GET /partial HTTP/1.1\r\nHost: x\r\n".length(), buffer.position());
+        HttpRequest request = feed("\r\n").get(0);
+        assertNotNull(request);
+        assertEquals("/partial", request.getPath());
+        assertNull(request.getHeader("Content-Length"));
+    }
+}
@@ -0,0 +1,354 @@
+package com.localserver;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+// Drives a real Reactor over loopback sockets.
+class ReactorTest {
+    @TempDir
+    Path root;
+
+    private ServerSocketChannel server;
+    private Metrics metrics;
+    private Router router;
+    private Listener listener;
+    private Reactor reactor;
+
+    static class Response {
+        int status;
+        final Map<String, String> headers = new HashMap<>();
+        byte[] body = new byte[0];
+
+        String body() {
+            return new String(body, StandardCharsets.UTF_8);
+        }
+    }
+
+    @BeforeEach
+    void start() throws IOException {
+        Files.writeString(root.resolve("a.txt"), "alpha");
+        Files.writeString(root.resolve("b.txt"), "bravo bravo");
+        Files.createDirectories(root.resolve("uploads"));
+
+        Map<String, Object> routes = new LinkedHashMap<>();
+        routes.put("/", Map.of("methods", List.of("GET"), "directory_listing", true));
+        routes.put("/upload", Map.of("methods", List.of("POST", "PUT"),
+                "upload_path", root.resolve("uploads").toString()));
+        Map<String, Object> config = new HashMap<>();
+        config.put("root", root.toString());
+        config.put("routes", routes);
+        config.put("worker_executor", "fixed");
+        config.put("worker_threads", 2);
+        config.put("access_log", root.resolve("access.log").toString());
+
+        metrics = new Metrics();
+        router = new Router(config, metrics);
+        server = ServerSocketChannel.open().bind(new InetSocketAddress("127.0.0.1", 0));
+        listener = new Listener("test", server, new VirtualHosts(router));
+        reactor = new Reactor("test", config, new Dispatcher(config), metrics, new AccessLog(config), () -> { });
+        Thread thread = new Thread(reactor, "test-reactor");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @AfterEach
+    void stop() throws IOException {
+        server.close();
+        router.close(Set.of());
+    }
+
+    private Socket connect() throws IOException {
+        Socket client = new Socket("127.0.0.1", server.socket().getLocalPort());
+        client.setSoTimeout(5000);
+        SocketChannel accepted = server.accept();
+        reactor.register(accepted, listener);
+        return client;
+    }
+
+    // Reads one response; bodyless tells it not to expect a body whatever
+    // the head says, as for HEAD and 1xx responses.
+    static Response read(InputStream in, boolean bodyless) throws IOException {
+        Response response = new Response();
+        String statusLine = line(in);
+        response.status = Integer.parseInt(statusLine.split(" ")[1]);
+        String line;
+        while (!(line = line(in)).isEmpty()) {
+            int colon = line.indexOf(':');
+            response.headers.put(line.substring(0, colon).toLowerCase(Locale.ROOT), line.substring(colon + 1).trim());
+        }
+        if (bodyless || response.status < 200 || response.status == 204 || response.status == 304) {
+            return response;
+        }
+        String length = response.headers.get("content-length");
+        if (length != null) {
+            response.body = in.readNBytes(Integer.parseInt(length));
+        } else if ("chunked".equals(response.headers.get("transfer-encoding"))) {
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            int size;
+            while ((size = Integer.parseInt(line(in).split(";")[0].trim(), 16)) > 0) {
+                body.write(in.readNBytes(size));
+                line(in);
+            }
+            while (!line(in).isEmpty()) { }
+            response.body = body.toByteArray();
+        }
+        return response;
+    }
+
+    private static String line(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = in.read()) != '\n') {
+            if (c == -1) throw new IOException("connection closed after \"" + line + "\"");
+            if (c != '\r') line.append((char) c);
+        }
+        return line.toString();
+    }
+
+    private static void send(Socket client, String data) throws IOException {
+        OutputStream out = client.getOutputStream();
+        out.write(data.getBytes(StandardCharsets.ISO_8859_1));
+        out.flush();
+    }
+
+    @Test
+    void answersPipelinedRequestsInOrder() throws IOException {
+        try (Socket client = connect()) {
+            send(client, "GET /a.txt HTTP/1.1\r\nHost: x\r\n\r\n"
+                    + "GET /missing HTTP/1.1\r\nHost: x\r\n\r\n"
+                    + "GET /b.txt HTTP/1.1\r\nHost: x\r\n\r\n"
+                    + "DELETE /a.txt HTTP/1.1\r\nHost: x\r\n\r\n"
+                    + "GET /a.txt HTTP/1.1\r\nHost: x\r\n\r\n");
+            InputStream in = client.getInputStream();
+            Response first = read(in, false);
+            assertEquals(200, first.status);
+            assertEquals("alpha", first.body());
+            assertEquals(404, read(in, false).status);
+            assertEquals("bravo bravo", read(in, false).body());
+            Response denied = read(in, false);
+            assertEquals(405, denied.status);
+            assertEquals("GET, HEAD", denied.headers.get("allow"));
+            assertEquals("alpha", read(in, false).body());
+        }
+    }
+
+    @Test
+    void answersPipelinedHeadWithoutBody() throws IOException {
+        try (Socket client = connect()) {
+            // The second HEAD for b.txt is served from the static cache.
+            send(client, "HEAD /a.txt HTTP/1.1\r\nHost: x\r\n\r\n"
+                    + "GET /b.txt HTTP/1.1\r\nHost: x\r\n\r\n"
+                    + "HEAD /b.txt HTTP/1.1\r\nHost: x\r\n\r\n"
+                    + "HEAD /missing HTTP/1.1\r\nHost: x\r\n\r\n"
+                    + "GET /a.txt HTTP/1.1\r\nHost: x\r\n\r\n");
+            InputStream in = client.getInputStream();
+            Response head = read(in, true);
+            assertEquals(200, head.status);
+            assertEquals("5", head.headers.get("content-length"));
+            assertEquals("bravo bravo", read(in, false).body());
+            Response cachedHead = read(in, true);
+            assertEquals(200, cachedHead.status);
+            assertEquals("11", cachedHead.headers.get("content-length"));
+            assertEquals(404, read(in, true).status);
+            Response last = read(in, false);
+            assertEquals(200, last.status);
+            assertEquals("alpha", last.body());
+        }
+    }
+
+    @Test
+    void framesInMemoryBodiesOfEverySize() throws IOException {
+        // Listings small enough to share the head's chunk, large enough for
+        // a chunk of their own, and above the largest pooled chunk.
+        int[] counts = {10, 200, 600};
+        for (int count : counts) {
+            Path dir = Files.createDirectories(root.resolve("list" + count));
+            for (int i = 0; i < count; i++) {
+                Files.createFile(dir.resolve(String.format("entry-%05d-", i) + "x".repeat(48)));
+            }
+        }
+        try (Socket client = connect()) {
+            StringBuilder requests = new StringBuilder();
+            for (int count : counts) {
+                requests.append("GET /list").append(count).append("/ HTTP/1.1\r\nHost: x\r\n\r\n");
+            }
+            send(client, requests + "GET /a.txt HTTP/1.1\r\nHost: x\r\n\r\n");
+            InputStream in = client.getInputStream();
+            for (int count : counts) {
+                String listing = read(in, false).body();
+                assertTrue(listing.endsWith("</ul></body></html>"));
+                assertTrue(listing.contains(String.format("entry-%05d-", count - 1)));
+            }
+            assertEquals("alpha", read(in, false).body());
+        }
+    }
+
+    @Test
+    void sendsContinueAfterEarlierPipelinedResponses() throws IOException {
+        try (Socket client = connect()) {
+            send(client, "GET /a.txt HTTP/1.1\r\nHost: x\r\n\r\n"
+                    + "PUT /upload/late.txt HTTP/1.1\r\nHost: x\r\nContent-Length: 4\r\n"
+                    + "Expect: 100-continue\r\n\r\n");
+            InputStream in = client.getInputStream();
+            assertEquals("alpha", read(in, false).body());
+            assertEquals(100, read(in, true).status);
+            send(client, "late");
+            assertEquals(201, read(in, false).status);
+            assertEquals("late", Files.readString(root.resolve("uploads/late.txt")));
+        }
+    }
+
+    @Test
+    void logsEachPipelinedResponseOnceWritten() throws Exception {
+        try (Socket client = connect()) {
+            send(client, "GET /a.txt HTTP/1.1\r\nHost: x\r\n\r\n"
+                    + "GET /missing HTTP/1.1\r\nHost: x\r\n\r\n"
+                    + "GET /b.txt HTTP/1.1\r\nHost: x\r\n\r\n");
+            InputStream in = client.getInputStream();
+            for (int i = 0; i < 3; i++) {
+                read(in, false);
+            }
+        }
+        // The writer thread appends in batches.
+        Path log = root.resolve("access.log");
+        List<String> lines = Files.readAllLines(log);
+        for (int i = 0; i < 200 && lines.size() < 3; i++) {
+            Thread.sleep(10);
+            lines = Files.readAllLines(log);
+        }
+        assertEquals(3, lines.size());
+        assertTrue(lines.get(0).contains("path=\"/a.txt\" status=200"));
+        assertTrue(lines.get(1).contains("path=\"/missing\" status=404"));
+        assertTrue(lines.get(2).contains("path=\"/b.txt\" status=200"));
+    }
+
+    @Test
+    void servesRequestsSplitAcrossWrites() throws Exception {
+        try (Socket client = connect()) {
+            client.setTcpNoDelay(true);
+            String request = "PUT /upload/split.txt HTTP/1.1\r\nHost: x\r\nContent-Length: 6\r\n\r\nsplit!"
+                    + "GET /b.txt HTTP/1.1\r\nHost: x\r\n\r\n";
+            for (int i = 0; i < request.length(); i += 7) {
+                send(client, request.substring(i, Math.min(request.length(), i + 7)));
+                Thread.sleep(2);
+            }
+            InputStream in = client.getInputStream();
+            assertEquals(201, read(in, false).status);
+            assertEquals("bravo bravo", read(in, false).body());
+            assertEquals("split!", Files.readString(root.resolve("uploads/split.txt")));
+        }
+    }
+
+    @Test
+    void exportsStaticCacheMetrics() throws IOException {
+        try (Socket client = connect()) {
+            // One at a time: pipelined, both could miss on parallel workers.
+            InputStream in = client.getInputStream();
+            for (int i = 0; i < 2; i++) {
+                send(client, "GET /a.txt HTTP/1.1\r\nHost: x\r\n\r\n");
+                assertEquals("alpha", read(in, false).body());
+            }
+        }
+        String rendered = metrics.render();
+        String server = "{server=\"localhost:8080\"} ";
+        assertTrue(rendered.contains("localserver_static_cache_hits_total" + server + "1\n"), rendered);
+        assertTrue(rendered.contains("localserver_static_cache_entries" + server + "1\n"), rendered);
+        assertTrue(rendered.contains("localserver_static_cache_evictions_total" + server + "0\n"), rendered);
+    }
+
+    @Test
+    void bugInOneConnectionClosesOnlyThatConnection() throws IOException {
+        VirtualHosts broken = new VirtualHosts(router) {
+            @Override
+            public BodySink open(HttpRequest request, long contentLength) {
+                throw new IllegalStateException("broken body policy");
+            }
+        };
+        Socket client = new Socket("127.0.0.1", server.socket().getLocalPort());
+        client.setSoTimeout(5000);
+        reactor.register(server.accept(), new Listener("broken", server, broken));
+        try (client) {
+            send(client, "PUT /upload/c.txt HTTP/1.1\r\nHost: x\r\nContent-Length: 3\r\n\r\nabc");
+            assertEquals(-1, client.getInputStream().read());
+        }
+        try (Socket other = connect()) {
+            send(other, "GET /a.txt HTTP/1.1\r\nHost: x\r\n\r\n");
+            assertEquals("alpha", read(other.getInputStream(), false).body());
+        }
+    }
+
+    @Test
+    void rejectsUploadNamesTheFilesystemCannotHold() throws IOException {
+        try (Socket client = connect()) {
+            send(client, "PUT /upload/a\0b HTTP/1.1\r\nHost: x\r\nContent-Length: 3\r\n\r\nabc");
+            InputStream in = client.getInputStream();
+            assertEquals(400, read(in, false).status);
+            assertEquals(-1, in.read());
+        }
+        try (Socket client = connect()) {
+            send(client, "PUT /upload/a\0b HTTP/1.1\r\nHost: x\r\nContent-Length: 0\r\n\r\n");
+            assertEquals(400, read(client.getInputStream(), false).status);
+        }
+    }
+
+    @Test
+    void closesAfterConnectionCloseOnceEarlierResponsesAreSent() throws IOException {
+        try (Socket client = connect()) {
+            send(client, "GET /a.txt HTTP/1.1\r\nHost: x\r\n\r\n"
+                    + "GET /b.txt HTTP/1.1\r\nHost: x\r\nConnection: close\r\n\r\n"
+                    + "GET /a.txt HTTP/1.1\r\nHost: x\r\n\r\n");
+            InputStream in = client.getInputStream();
+            assertEquals("alpha", read(in, false).body());
+            Response last = read(in, false);
+            assertEquals("bravo bravo", last.body());
+            assertEquals("close", last.headers.get("connection"));
+            assertEquals(-1, in.read());
+        }
+    }
+
+    @Test
+    void answersBadRequestAndCloses() throws IOException {
+        try (Socket client = connect()) {
+            send(client, "GET /a.txt HTTP/1.1\r\nHost: x\r\n\r\nNONSENSE\r\n\r\n");
+            InputStream in = client.getInputStream();
+            assertEquals("alpha", read(in, false).body());
+            assertEquals(400, read(in, false).status);
+            assertEquals(-1, in.read());
+        }
+    }
+
+    @Test
+    void keepsConnectionOpenBetweenRequests() throws IOException {
+        try (Socket client = connect()) {
+            InputStream in = client.getInputStream();
+            for (int i = 0; i < 5; i++) {
+                send(client, "GET /a.txt HTTP/1.1\r\nHost: x\r\n\r\n");
+                Response response = read(in, false);
+                assertEquals(200, response.status);
+                assertTrue(!"close".equals(response.headers.get("connection")));
+            }
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package com.localserver;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.jupiter.api.Test;
+
+class RouteTableTest {
+    private static RouteTable table(Map<String, Object> routes) {
+        return new RouteTable(routes, route -> (request, r) -> null);
+    }
+
+    private static Map<String, Object> routes() {
+        Map<String, Object> routes = new LinkedHashMap<>();
+        routes.put("/", Map.of("methods", List.of("GET")));
+        routes.put("/upload", Map.of("methods", List.of("POST", "PUT")));
+        routes.put("/cgi-bin/", Map.of("methods", List.of("GET", "POST")));
+        routes.put("/cgi-bin/admin", Map.of());
+        return routes;
+    }
+
+    @Test
+    void longestPrefixOnSegmentBoundaryWins() {
+        RouteTable table = table(routes());
+        assertEquals("/upload", table.match("/upload").getPrefix());
+        assertEquals("/upload", table.match("/upload/a.txt").getPrefix());
+        assertEquals("/", table.match("/uploads").getPrefix());
+        assertEquals("/", table.match("/uploads/a.txt").getPrefix());
+        assertEquals("/cgi-bin", table.match("/cgi-bin").getPrefix());
+        assertEquals("/cgi-bin", table.match("/cgi-bin/hello.py").getPrefix());
+        assertEquals("/cgi-bin/admin", table.match("/cgi-bin/admin/x.py").getPrefix());
+        assertEquals("/cgi-bin", table.match("/cgi-bin/administrator").getPrefix());
+        assertEquals("/", table.match("/").getPrefix());
+    }
+
+    @Test
+    void noMatchWithoutRootRoute() {
+        Map<String, Object> routes = new LinkedHashMap<>();
+        routes.put("/api", Map.of());
+        RouteTable table = table(routes);
+        assertNull(table.match("/"));
+        assertNull(table.match("/apix"));
+        assertEquals("/api", table.match("/api/v1").getPrefix());
+    }
+
+    @Test
+    void checksMethodsAgainstTheRouteList() {
+        RouteTable.Route upload = table(routes()).match("/upload/x");
+        assertTrue(upload.allows("POST"));
+        assertTrue(upload.allows("PUT"));
+        assertFalse(upload.allows("GET"));
+        assertFalse(upload.allows("BREW"));
+        assertEquals("POST, PUT", upload.getAllow());
+    }
+
+    @Test
+    void getRouteAlsoAllowsHead() {
+        RouteTable.Route root = table(routes()).match("/a.txt");
+        assertTrue(root.allows("GET"));
+        assertTrue(root.allows("HEAD"));
+        assertFalse(root.allows("POST"));
+        assertEquals("GET, HEAD", root.getAllow());
+        assertEquals("GET, HEAD, POST", table(routes()).match("/cgi-bin/x.py").getAllow());
+    }
+
+    @Test
+    void routeWithoutMethodsAcceptsStandardMethods() {
+        RouteTable.Route admin = table(routes()).match("/cgi-bin/admin");
+        for (String method : List.of("GET", "POST", "PUT", "DELETE", "OPTIONS", "PATCH")) {
+            assertTrue(admin.allows(method), method);
+        }
+        assertFalse(admin.allows("BREW"));
+    }
+
+    @Test
+    void handlerIsChosenOncePerRoute() {
+        RouteTable.Handler handler = (request, route) -> null;
+        Map<String, Object> routes = new LinkedHashMap<>();
+        routes.put("/a", Map.of());
+        RouteTable table = new RouteTable(routes, route -> handler);
+        assertSame(handler, table.match("/a/b").getHandler());
+        assertSame(table.match("/a"), table.getRoutes().get("/a"));
+    }
+}
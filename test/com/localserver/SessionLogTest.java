@@ -0,0 +1,177 @@
+package com.localserver;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.nio.ByteBuffer;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class SessionLogTest {
+    @TempDir
+    Path dir;
+
+    private final List<SessionManager> opened = new ArrayList<>();
+
+    private SessionManager open(int compactBytes) {
+        return open(compactBytes, 100000);
+    }
+
+    private SessionManager open(int compactBytes, int maxCount) {
+        Map<String, Object> config = new HashMap<>();
+        config.put("session_max_count", maxCount);
+        config.put("session_store", dir.toString());
+        config.put("session_log_segment_bytes", 65536);
+        config.put("session_log_compact_bytes", compactBytes);
+        config.put("session_log_flush_ms", 10);
+        SessionManager sessions = new SessionManager(config);
+        opened.add(sessions);
+        return sessions;
+    }
+
+    @AfterEach
+    void closeAll() {
+        for (SessionManager sessions : opened) {
+            sessions.close();
+        }
+    }
+
+    @Test
+    void replaysSessionsAndAttributesAfterRestart() {
+        SessionManager first = open(1 << 30);
+        SessionManager.Session kept = first.createSession();
+        kept.put("count", 3);
+        kept.put("name", "ada");
+        kept.put("ratio", 0.5);
+        kept.put("flag", true);
+        kept.put("big", 1L << 40);
+        kept.put("gone", "x");
+        kept.remove("gone");
+        SessionManager.Session deleted = first.createSession();
+        first.invalidateSession(deleted.getId());
+        first.close();
+
+        SessionManager second = open(1 << 30);
+        SessionManager.Session restored = second.getSession(kept.getId());
+        assertNotNull(restored);
+        assertEquals(kept.getCreated(), restored.getCreated());
+        assertEquals(3, restored.get("count"));
+        assertEquals("ada", restored.get("name"));
+        assertEquals(0.5, restored.get("ratio"));
+        assertEquals(true, restored.get("flag"));
+        assertEquals(1L << 40, restored.get("big"));
+        assertNull(restored.get("gone"));
+        assertNull(second.getSession(deleted.getId()));
+        assertEquals(1, second.getLiveCount());
+    }
+
+    @Test
+    void valuesThatCannotBeStoredDoNotResurrectOlderOnes() {
+        SessionManager first = open(1 << 30);
+        SessionManager.Session session = first.createSession();
+        session.put("value", "stored");
+        session.put("value", new Object());
+        first.close();
+
+        SessionManager.Session restored = open(1 << 30).getSession(session.getId());
+        assertNotNull(restored);
+        assertNull(restored.get("value"));
+    }
+
+    @Test
+    void replayStopsAtFirstDamagedRecord() throws Exception {
+        SessionManager first = open(1 << 30);
+        SessionManager.Session intact = first.createSession();
+        intact.put("n", 1);
+        SessionManager.Session torn = first.createSession();
+        first.close();
+
+        // Flip a payload byte of the last record, as a crash mid-write would.
+        Path log = newestLog();
+        byte[] data = Files.readAllBytes(log);
+        ByteBuffer frames = ByteBuffer.wrap(data);
+        int last = -1;
+        while (frames.remaining() >= 8) {
+            int length = frames.getInt(frames.position());
+            if (length <= 0) break;
+            last = frames.position();
+            frames.position(frames.position() + 8 + length);
+        }
+        data[last + 8 + 2] ^= 0x55;
+        Files.write(log, data);
+
+        SessionManager second = open(1 << 30);
+        assertNotNull(second.getSession(intact.getId()));
+        assertEquals(1, second.getSession(intact.getId()).get("n"));
+        assertNull(second.getSession(torn.getId()));
+    }
+
+    @Test
+    void survivesCompactionWhileSessionsChange() throws Exception {
+        // A tiny compaction threshold makes the flusher rotate and snapshot
+        // over and over while sessions are created and updated.
+        SessionManager first = open(256);
+        List<SessionManager.Session> created = Collections.synchronizedList(new ArrayList<>());
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < 500; i++) {
+                    SessionManager.Session session = first.createSession();
+                    session.put("i", i);
+                    created.add(session);
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        first.close();
+
+        SessionManager second = open(1 << 30);
+        for (SessionManager.Session session : created) {
+            SessionManager.Session restored = second.getSession(session.getId());
+            assertNotNull(restored, "lost " + session.getId());
+            assertEquals(session.get("i"), restored.get("i"));
+        }
+    }
+
+    @Test
+    void evictionsWhileRestoringAreLogged() {
+        SessionManager first = open(1 << 30);
+        for (int i = 0; i < 200; i++) {
+            first.createSession();
+        }
+        first.close();
+
+        // One session per stripe survives the smaller cap.
+        SessionManager capped = open(1 << 30, 16);
+        int kept = capped.getLiveCount();
+        assertEquals(16, kept);
+        capped.close();
+
+        assertEquals(kept, open(1 << 30).getLiveCount());
+    }
+
+    private Path newestLog() throws Exception {
+        Path newest = null;
+        try (DirectoryStream<Path> logs = Files.newDirectoryStream(dir, "sessions-*.log")) {
+            for (Path log : logs) {
+                if (newest == null || log.getFileName().toString().compareTo(newest.getFileName().toString()) > 0) {
+                    newest = log;
+                }
+            }
+        }
+        return newest;
+    }
+}
@@ -0,0 +1,90 @@
+package com.localserver;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class StaticFilesTest {
+    @TempDir
+    Path root;
+
+    private StaticFiles files;
+
+    @BeforeEach
+    void open() {
+        Map<String, Object> config = Map.of("compression", true);
+        files = new StaticFiles(config, root, new Compression(config));
+    }
+
+    @AfterEach
+    void close() {
+        files.getCache().close();
+    }
+
+    private static HttpRequest request(String head) throws Exception {
+        HttpParser parser = new HttpParser();
+        return parser.parse(ByteBuffer.wrap(head.getBytes(StandardCharsets.ISO_8859_1)));
+    }
+
+    @Test
+    void compressesUncacheablePathsOncePerVersion() throws Exception {
+        File page = Files.writeString(root.resolve("index.html"), "<p>hello</p>\n".repeat(200)).toFile();
+        HttpRequest request = request("GET / HTTP/1.1\r\nHost: x\r\nAccept-Encoding: gzip\r\n\r\n");
+
+        StaticCache.Entry first = files.serve(request, page, null).getCached();
+        assertNotNull(first);
+        assertSame(first, files.serve(request, page, null).getCached());
+
+        page.setLastModified(page.lastModified() + 5000);
+        assertNotSame(first, files.serve(request, page, null).getCached());
+    }
+
+    // A file whose length changed after it was looked at, as when it is
+    // rewritten between the stat and the read.
+    private File staleLength(Path path, long length) {
+        return new File(path.toString()) {
+            @Override
+            public long length() {
+                return length;
+            }
+        };
+    }
+
+    @Test
+    void cachedContentLengthMatchesBytesRead() throws Exception {
+        Path path = Files.writeString(root.resolve("grown.txt"), "eleven char");
+        HttpRequest request = request("GET /grown.txt HTTP/1.1\r\nHost: x\r\n\r\n");
+
+        StaticCache.Entry cached = files.serve(request, staleLength(path, 3), "/grown.txt").getCached();
+        ByteBuffer head = cached.head();
+        byte[] bytes = new byte[head.remaining()];
+        head.get(bytes);
+        assertTrue(new String(bytes, StandardCharsets.ISO_8859_1).contains("Content-Length: 11\r\n"));
+        assertEquals(11, cached.body().remaining());
+    }
+
+    @Test
+    void fileBodyLengthMatchesOpenedFile() throws Exception {
+        Path path = Files.writeString(root.resolve("grown.txt"), "eleven char");
+        HttpRequest request = request("GET /grown.txt HTTP/1.1\r\nHost: x\r\n\r\n");
+
+        HttpResponse response = files.serve(request, staleLength(path, 3), null);
+        assertEquals("11", response.getHeader("Content-Length"));
+        for (Outbound part : response.getBodyParts()) {
+            part.close();
+        }
+    }
+}